@@ -0,0 +1,46 @@
+import java.nio.ByteBuffer;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+
+/**
+ * The UTXOs of a pool grouped by the encoded address of their outputs, so that the UTXOs of one
+ * address are found without scanning the pool. Each address keeps its UTXOs in the order they were
+ * added. UTXOs whose output or address is null aren't indexed.
+ */
+class AddressIndex {
+
+    private final HashMap<ByteBuffer, LinkedHashSet<UTXO>> utxosByAddress =
+        new HashMap<ByteBuffer, LinkedHashSet<UTXO>>();
+
+    /** Indexes {@code utxo}, which maps to {@code txOut} */
+    synchronized void add(UTXO utxo, Transaction.Output txOut) {
+        ByteBuffer key = keyOf(txOut);
+        if (key != null)
+            utxosByAddress.computeIfAbsent(key, k -> new LinkedHashSet<UTXO>()).add(utxo);
+    }
+
+    /** Removes {@code utxo}, which mapped to {@code txOut}, from the index */
+    synchronized void remove(UTXO utxo, Transaction.Output txOut) {
+        ByteBuffer key = keyOf(txOut);
+        if (key == null)
+            return;
+        LinkedHashSet<UTXO> utxos = utxosByAddress.get(key);
+        if (utxos != null && utxos.remove(utxo) && utxos.isEmpty())
+            utxosByAddress.remove(key);
+    }
+
+    /** @return the UTXOs of {@code address}, oldest first */
+    synchronized ArrayList<UTXO> get(PublicKey address) {
+        LinkedHashSet<UTXO> utxos = utxosByAddress.get(ByteBuffer.wrap(address.getEncoded()));
+        return utxos == null ? new ArrayList<UTXO>() : new ArrayList<UTXO>(utxos);
+    }
+
+    private static ByteBuffer keyOf(Transaction.Output txOut) {
+        if (txOut == null || txOut.address == null)
+            return null;
+        //the encoding is cached by the output and never modified, so the key can wrap it as is.
+        return ByteBuffer.wrap(txOut.getEncodedAddress());
+    }
+}
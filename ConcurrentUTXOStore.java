@@ -0,0 +1,153 @@
+import java.util.List;
+import java.util.function.BiConsumer;
+
+/**
+ * A UTXOStore that can be read from any number of threads while another thread updates it, for
+ * example to answer wallet queries while a TxHandler created with {@link TxHandler#forLedger}
+ * applies an epoch.
+ *
+ * <p>The UTXOs are split over shards by the high bits of their transaction hash. Each shard
+ * publishes an immutable {@link PersistentUTXOMap} through a volatile field: reads are wait-free,
+ * since they never lock and never retry, and writers build the shard's next version under the
+ * shard's lock and publish it with a single write. Every single-UTXO operation is therefore
+ * linearizable. An {@link #update} is applied with one new version per shard it touches, so
+ * readers see each shard's part of it all at once, but may see one shard updated before another.
+ * {@link #size()} and {@link #forEach} look at the shards one after the other.
+ */
+public class ConcurrentUTXOStore implements UTXOStore {
+
+    private static final int DEFAULT_SHARDS = 64;
+
+    private static final class Shard {
+        /** Never updated in place once published; writers replace it with a new version */
+        volatile PersistentUTXOMap map;
+
+        Shard(PersistentUTXOMap map) {
+            this.map = map;
+        }
+    }
+
+    private final Shard[] shards;
+    /** Number of bits of the hash prefix used to choose the shard */
+    private final int shardBits;
+
+    /** Creates a new empty store with 64 shards */
+    public ConcurrentUTXOStore() {
+        this(DEFAULT_SHARDS);
+    }
+
+    /** Creates a new empty store with {@code shardCount} shards, which must be a power of two */
+    public ConcurrentUTXOStore(int shardCount) {
+        if (shardCount < 1 || Integer.bitCount(shardCount) != 1 || shardCount > 1 << 16)
+            throw new IllegalArgumentException("shard count must be a power of two up to 65536: "
+                + shardCount);
+        shardBits = Integer.numberOfTrailingZeros(shardCount);
+        shards = new Shard[shardCount];
+        for (int i = 0; i < shardCount; i++)
+            shards[i] = new Shard(new PersistentUTXOMap());
+    }
+
+    private ConcurrentUTXOStore(ConcurrentUTXOStore store) {
+        shardBits = store.shardBits;
+        shards = new Shard[store.shards.length];
+        //published maps are never updated in place, so both stores can start from them.
+        for (int i = 0; i < shards.length; i++)
+            shards[i] = new Shard(store.shards[i].map);
+    }
+
+    public Transaction.Output get(UTXO utxo) {
+        return shardFor(utxo).map.get(utxo);
+    }
+
+    public boolean containsKey(UTXO utxo) {
+        return shardFor(utxo).map.containsKey(utxo);
+    }
+
+    public void put(UTXO utxo, Transaction.Output txOut) {
+        Shard shard = shardFor(utxo);
+        synchronized (shard) {
+            PersistentUTXOMap next = shard.map.copy();
+            next.put(utxo, txOut);
+            shard.map = next;
+        }
+    }
+
+    public void remove(UTXO utxo) {
+        Shard shard = shardFor(utxo);
+        synchronized (shard) {
+            if (!shard.map.containsKey(utxo))
+                return;
+            PersistentUTXOMap next = shard.map.copy();
+            next.remove(utxo);
+            shard.map = next;
+        }
+    }
+
+    /**
+     * Applies the update with a single new version of every shard it touches. Nodes created while
+     * building a version are updated in place, so a batch costs little more than its entries.
+     */
+    public void update(List<UTXO> spent, List<UTXO> created,
+            List<Transaction.Output> createdOutputs) {
+        int[] spentShards = new int[spent.size()];
+        int[] createdShards = new int[created.size()];
+        boolean[] touched = new boolean[shards.length];
+        for (int i = 0; i < spentShards.length; i++)
+            touched[spentShards[i] = shardIndex(spent.get(i))] = true;
+        for (int i = 0; i < createdShards.length; i++)
+            touched[createdShards[i] = shardIndex(created.get(i))] = true;
+
+        //shards are locked one at a time, so concurrent batches can't deadlock.
+        for (int s = 0; s < shards.length; s++) {
+            if (!touched[s])
+                continue;
+            Shard shard = shards[s];
+            synchronized (shard) {
+                PersistentUTXOMap next = shard.map.copy();
+                for (int i = 0; i < spentShards.length; i++) {
+                    if (spentShards[i] == s)
+                        next.remove(spent.get(i));
+                }
+                for (int i = 0; i < createdShards.length; i++) {
+                    if (createdShards[i] == s)
+                        next.put(created.get(i), createdOutputs.get(i));
+                }
+                shard.map = next;
+            }
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (Shard shard : shards)
+            size += shard.map.size();
+        return size;
+    }
+
+    public void forEach(BiConsumer<UTXO, Transaction.Output> action) {
+        for (Shard shard : shards)
+            shard.map.forEach(action);
+    }
+
+    /** @return a copy of this store, in time proportional to the number of shards */
+    public ConcurrentUTXOStore copy() {
+        return new ConcurrentUTXOStore(this);
+    }
+
+    private Shard shardFor(UTXO utxo) {
+        return shards[shardIndex(utxo)];
+    }
+
+    /** @return the shard of {@code utxo}, taken from the first 16 bits of its transaction hash */
+    private int shardIndex(UTXO utxo) {
+        if (shardBits == 0)
+            return 0;
+        byte[] txHash = utxo.getTxHash();
+        int prefix = 0;
+        if (txHash.length > 0)
+            prefix = (txHash[0] & 0xFF) << 8;
+        if (txHash.length > 1)
+            prefix |= txHash[1] & 0xFF;
+        return prefix >>> (16 - shardBits);
+    }
+}
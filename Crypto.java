@@ -1,11 +1,54 @@
+import java.nio.ByteBuffer;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
 import java.security.Signature;
 import java.security.SignatureException;
+import java.util.LinkedHashMap;
+import java.util.Map;
   
 public class Crypto {
 
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    /** Number of keys each thread keeps a ready-to-use Signature for */
+    private static final int KEYS_PER_THREAD = 256;
+
+    /** Number of successful checks remembered by default */
+    private static final int CACHED_SIGNATURES = 1 << 16;
+
+    private static volatile SignatureCache signatureCache = new SignatureCache(CACHED_SIGNATURES);
+
+    /** Outcome of a signature check, telling apart the reasons it can fail */
+    public enum VerifyResult {
+        /** the signature is valid */
+        VALID,
+        /** the signature is well-formed but does not match the message and key */
+        BAD_SIGNATURE,
+        /** the signature could not be parsed, e.g. because it has the wrong length */
+        MALFORMED_SIGNATURE,
+        /** there is no signature */
+        MISSING_SIGNATURE,
+        /** there is no key */
+        MISSING_KEY,
+        /** the key can't be used to verify SHA256withRSA signatures */
+        INVALID_KEY,
+        /** no installed provider implements SHA256withRSA */
+        NO_ALGORITHM
+    }
+
+    /**
+     * Signature objects of one thread, each already initialized for a key. Signature.verify resets
+     * the object to the state right after initVerify, so one object can check any number of
+     * signatures under its key without looking up the provider or preparing the key again.
+     */
+    private static final ThreadLocal<LinkedHashMap<PublicKey, Signature>> VERIFIERS =
+        ThreadLocal.withInitial(() -> new LinkedHashMap<PublicKey, Signature>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<PublicKey, Signature> eldest) {
+                return size() > KEYS_PER_THREAD;
+            }
+        });
+
     /**
      * @return true is {@code signature} is a valid digital signature of {@code message} under the
      *         key {@code pubKey}. Internally, this uses RSA signature, but the student does not
@@ -13,25 +56,88 @@ public class Crypto {
      *         algorithm
      */
     public static boolean verifySignature(PublicKey pubKey, byte[] message, byte[] signature) {
-        Signature sig = null;
-        try {
-            sig = Signature.getInstance("SHA256withRSA");
-        } catch (NoSuchAlgorithmException e) {
-            e.printStackTrace();
+        return verify(pubKey, ByteBuffer.wrap(message), EMPTY, signature) == VerifyResult.VALID;
+    }
+
+    /**
+     * @return true if {@code signature} is a valid digital signature of the remaining bytes of
+     *         {@code message} under the key {@code pubKey}. The bytes are consumed.
+     */
+    public static boolean verifySignature(PublicKey pubKey, ByteBuffer message, byte[] signature) {
+        return verify(pubKey, message, EMPTY, signature) == VerifyResult.VALID;
+    }
+
+    /**
+     * @return true if {@code signature} is a valid digital signature of the remaining bytes of
+     *         {@code prefix} followed by the remaining bytes of {@code suffix} under the key
+     *         {@code pubKey}. This lets callers sign data made of a per-input part and a shared part
+     *         without concatenating them. The bytes are consumed.
+     */
+    public static boolean verifySignature(PublicKey pubKey, ByteBuffer prefix, ByteBuffer suffix,
+            byte[] signature) {
+        return verify(pubKey, prefix, suffix, signature) == VerifyResult.VALID;
+    }
+
+    /**
+     * Sets the cache of successful checks consulted before verifying a signature, or disables
+     * caching if {@code cache} is null
+     */
+    public static void setSignatureCache(SignatureCache cache) {
+        signatureCache = cache;
+    }
+
+    /** @return the cache of successful checks, or null if caching is disabled */
+    public static SignatureCache getSignatureCache() {
+        return signatureCache;
+    }
+
+    /**
+     * Checks {@code signature} like {@link #verifySignature(PublicKey, ByteBuffer, ByteBuffer,
+     * byte[])}, but reports why the check failed instead of printing it
+     */
+    public static VerifyResult verify(PublicKey pubKey, ByteBuffer prefix, ByteBuffer suffix,
+            byte[] signature) {
+        if (pubKey == null)
+            return VerifyResult.MISSING_KEY;
+        if (signature == null)
+            return VerifyResult.MISSING_SIGNATURE;
+        SignatureCache cache = signatureCache;
+        SignatureCache.Id id = null;
+        if (cache != null) {
+            id = SignatureCache.id(pubKey, prefix, suffix, signature);
+            if (cache.contains(id)) {
+                prefix.position(prefix.limit());
+                suffix.position(suffix.limit());
+                return VerifyResult.VALID;
+            }
         }
-        try {
-            sig.initVerify(pubKey);
-        } catch (InvalidKeyException e) {
-            e.printStackTrace();
+        LinkedHashMap<PublicKey, Signature> verifiers = VERIFIERS.get();
+        Signature sig = verifiers.get(pubKey);
+        if (sig == null) {
+            try {
+                sig = Signature.getInstance("SHA256withRSA");
+                sig.initVerify(pubKey);
+            } catch (NoSuchAlgorithmException e) {
+                return VerifyResult.NO_ALGORITHM;
+            } catch (InvalidKeyException e) {
+                return VerifyResult.INVALID_KEY;
+            }
+            verifiers.put(pubKey, sig);
         }
         try {
-            sig.update(message);
-            return sig.verify(signature);
+            sig.update(prefix);
+            sig.update(suffix);
+            if (!sig.verify(signature))
+                return VerifyResult.BAD_SIGNATURE;
+            //only successes are cached, so a flood of bad signatures can't evict them.
+            if (cache != null)
+                cache.add(id);
+            return VerifyResult.VALID;
         } catch (SignatureException e) {
-            e.printStackTrace();
+            //the object may be left half-way through a message, so don't reuse it.
+            verifiers.remove(pubKey);
+            return VerifyResult.MALFORMED_SIGNATURE;
         }
-        return false;
-
     }
 /*add blah blah
 
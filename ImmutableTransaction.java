@@ -0,0 +1,125 @@
+import java.nio.ByteBuffer;
+import java.security.PublicKey;
+import java.util.ArrayList;
+
+/**
+ * A transaction that can't change once built by a {@link TransactionBuilder}. Its hash is computed
+ * when it is built, the methods that would modify it throw UnsupportedOperationException, and the
+ * Input and Output objects it hands out, as well as the arrays returned by
+ * {@link #getPrevTxHash(int)} and {@link #getSignature(int)}, are copies, so changing them doesn't
+ * change it.
+ *
+ * <p>Since nothing can tamper with it, {@link TxHandler} validates it without the defensive copy it
+ * makes of other transactions, and it can be shared between threads once published.
+ */
+public final class ImmutableTransaction extends Transaction {
+
+    /** Creates a transaction with copies of the inputs and outputs of {@code tx} */
+    ImmutableTransaction(Transaction tx) {
+        super(copyInputs(tx), copyOutputs(tx));
+        //serializes the outputs and computes the id once, so later reads never write a field. As
+        //nothing can change it, there's no need to remember what the id was computed from.
+        computeId();
+    }
+
+    private static ArrayList<Input> copyInputs(Transaction tx) {
+        ArrayList<Input> inputs = new ArrayList<Input>(tx.numInputs());
+        for (int i = 0; i < tx.numInputs(); i++)
+            inputs.add(copy(tx.getInput(i)));
+        return inputs;
+    }
+
+    private static ArrayList<Output> copyOutputs(Transaction tx) {
+        ArrayList<Output> outputs = new ArrayList<Output>(tx.numOutputs());
+        for (int i = 0; i < tx.numOutputs(); i++)
+            outputs.add(copy(tx.getOutput(i)));
+        return outputs;
+    }
+
+    private static Input copy(Input in) {
+        Input copy = new Input(in.prevTxHash, in.outputIndex);
+        copy.addSignature(in.signature);
+        return copy;
+    }
+
+    private static Output copy(Output op) {
+        return new Output(op.value, op.address);
+    }
+
+    /** @return copies of the inputs */
+    public ArrayList<Input> getInputs() {
+        ArrayList<Input> inputs = new ArrayList<Input>(numInputs());
+        for (Input in : super.getInputs())
+            inputs.add(copy(in));
+        return inputs;
+    }
+
+    /** @return copies of the outputs */
+    public ArrayList<Output> getOutputs() {
+        ArrayList<Output> outputs = new ArrayList<Output>(numOutputs());
+        for (Output op : super.getOutputs())
+            outputs.add(copy(op));
+        return outputs;
+    }
+
+    /** @return a copy of input {@code index}, or null if there is none */
+    public Input getInput(int index) {
+        Input in = super.getInput(index);
+        return in == null ? null : copy(in);
+    }
+
+    /** @return a copy of output {@code index}, or null if there is none */
+    public Output getOutput(int index) {
+        Output op = super.getOutput(index);
+        return op == null ? null : copy(op);
+    }
+
+    /** @return a copy of the {@code prevTxHash} of input {@code index} */
+    public byte[] getPrevTxHash(int index) {
+        byte[] prevTxHash = prevTxHash(index);
+        return prevTxHash == null ? null : prevTxHash.clone();
+    }
+
+    /** @return a copy of the signature of input {@code index}, or null if it has none */
+    public byte[] getSignature(int index) {
+        byte[] signature = signature(index);
+        return signature == null ? null : signature.clone();
+    }
+
+    /** @return a read-only view of the serialized outputs */
+    public ByteBuffer getOutputsDataBuffer() {
+        return super.getOutputsDataBuffer().asReadOnlyBuffer();
+    }
+
+    /** Does nothing, since the hash was computed when the transaction was built */
+    public void finalize() {
+    }
+
+    public void addInput(byte[] prevTxHash, int outputIndex) {
+        throw immutable();
+    }
+
+    public void addOutput(long value, PublicKey address) {
+        throw immutable();
+    }
+
+    public void removeInput(int index) {
+        throw immutable();
+    }
+
+    public void removeInput(UTXO ut) {
+        throw immutable();
+    }
+
+    public void addSignature(byte[] signature, int index) {
+        throw immutable();
+    }
+
+    public void setHash(byte[] h) {
+        throw immutable();
+    }
+
+    private static UnsupportedOperationException immutable() {
+        return new UnsupportedOperationException("the transaction is immutable");
+    }
+}
@@ -0,0 +1,487 @@
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.zip.CRC32;
+
+/**
+ * A UTXOStore kept on disk, so that a node can restart without replaying history. The UTXOs live in
+ * an {@link OutpointTable} mapped from {@code utxo.tbl}, and the addresses they pay to are appended
+ * once each to {@code utxo.adr}. Opening a store maps the files; it does not read the entries.
+ *
+ * <p>Updates are buffered in memory, where reads see them immediately, until {@link #commit()}
+ * makes them durable as one epoch: the epoch's changes are first written to the write-ahead log
+ * {@code utxo.wal} and forced to disk, then applied to the table, and only once the table is forced
+ * is the epoch recorded in the table header and the log cleared. If the process dies at any point,
+ * opening the store again finishes applying a complete logged epoch or drops an incomplete one, so
+ * the store always comes back at the last committed epoch. The same holds after a power loss, which
+ * may leave any of the table's pages written and a slot half-written where it crosses two of them:
+ * every slot carries a checksum, and the slots found torn are dropped before the epoch is applied
+ * again. This assumes the disk honors {@link FileChannel#force} and keeps what it reported forced.
+ *
+ * <p>Like {@link OffHeapUTXOStore}, only 32-byte transaction hashes can be stored and outputs
+ * returned by {@link #get} are new objects. Addresses are expected to be RSA keys, as used by
+ * {@link Crypto}, and are never removed from the address file. This class is not thread-safe.
+ */
+public class MappedUTXOStore implements UTXOStore, Closeable {
+
+    private static final String TABLE_FILE = "utxo.tbl";
+    private static final String ADDRESS_FILE = "utxo.adr";
+    private static final String LOG_FILE = "utxo.wal";
+    private static final String RESIZE_FILE = "utxo.tbl.tmp";
+
+    //table file header, followed by the slots.
+    private static final int MAGIC = 0x5554584F;
+    //version 3 adds a checksum to each slot; version 2 stores output values as longs, where version
+    //1 stored doubles.
+    private static final int VERSION = 3;
+    private static final int HEADER_SIZE = 64;
+    private static final int H_MAGIC = 0;
+    private static final int H_VERSION = 4;
+    private static final int H_CAPACITY = 8;
+    private static final int H_LIVE = 12;
+    private static final int H_USED = 16;
+    private static final int H_EPOCH = 24;
+
+    //log record: length, epoch, op count, ops, CRC32 of everything after the length.
+    private static final int MIN_RECORD_LENGTH = 8 + 4 + 4;
+    private static final byte OP_PUT = 1;
+    private static final byte OP_REMOVE = 2;
+    private static final int OP_SIZE = 1 + OutpointTable.HASH_LENGTH + 4 + 8 + 4;
+
+    //stored in place of an address offset.
+    private static final int NULL_OUTPUT = -1;
+    private static final int NULL_ADDRESS = -2;
+
+    /** Marks a UTXO removed in the current epoch */
+    private static final Object REMOVED = new Object();
+    /** Stands for a null output in {@code pending} */
+    private static final Transaction.Output NULL = new Transaction.Output(0, null);
+
+    private final Path dir;
+    private FileChannel tableChannel;
+    private final FileChannel addressChannel;
+    private final FileChannel logChannel;
+    private MappedByteBuffer header;
+    private OutpointTable table;
+    private long epoch;
+
+    /** Offsets in the address file by encoded address, and the addresses decoded so far */
+    private final HashMap<ByteBuffer, Integer> addressOffsets = new HashMap<ByteBuffer, Integer>();
+    private final HashMap<Integer, PublicKey> decodedAddresses = new HashMap<Integer, PublicKey>();
+    private long addressFileSize;
+
+    /** Updates since the last commit, each UTXO mapped to its output or to REMOVED */
+    private final HashMap<UTXO, Object> pending = new HashMap<UTXO, Object>();
+    private int pendingSizeChange;
+
+    private final OutpointTable.Key key = new OutpointTable.Key();
+
+    private MappedUTXOStore(Path dir) throws IOException {
+        this.dir = dir;
+        Files.createDirectories(dir);
+        Files.deleteIfExists(dir.resolve(RESIZE_FILE));
+        addressChannel = FileChannel.open(dir.resolve(ADDRESS_FILE), StandardOpenOption.CREATE,
+            StandardOpenOption.READ, StandardOpenOption.WRITE);
+        logChannel = FileChannel.open(dir.resolve(LOG_FILE), StandardOpenOption.CREATE,
+            StandardOpenOption.READ, StandardOpenOption.WRITE);
+        Path tablePath = dir.resolve(TABLE_FILE);
+        if (!Files.exists(tablePath))
+            createTable(tablePath, OutpointTable.MIN_CAPACITY).close();
+        mapTable();
+        loadAddresses();
+        recover();
+    }
+
+    /**
+     * Opens the store in directory {@code dir}, creating an empty one if there is none, and brings
+     * it back to its last committed epoch
+     */
+    public static MappedUTXOStore open(Path dir) throws IOException {
+        return new MappedUTXOStore(dir);
+    }
+
+    /** @return the number of epochs committed to this store */
+    public long getEpoch() {
+        return epoch;
+    }
+
+    public Transaction.Output get(UTXO utxo) {
+        Object p = pending.get(utxo);
+        if (p != null)
+            return p == REMOVED ? null : unwrap(p);
+        if (!key.set(utxo))
+            return null;
+        int slot = table.find(key);
+        return slot < 0 ? null : output(slot);
+    }
+
+    public boolean containsKey(UTXO utxo) {
+        Object p = pending.get(utxo);
+        if (p != null)
+            return p != REMOVED;
+        return key.set(utxo) && table.find(key) >= 0;
+    }
+
+    /**
+     * Maps {@code utxo} to {@code txOut} as of the next commit
+     * @throws IllegalArgumentException if the transaction hash of {@code utxo} is not 32 bytes long
+     */
+    public void put(UTXO utxo, Transaction.Output txOut) {
+        if (utxo.getTxHash().length != OutpointTable.HASH_LENGTH)
+            throw new IllegalArgumentException("transaction hashes must be "
+                + OutpointTable.HASH_LENGTH + " bytes long, not " + utxo.getTxHash().length);
+        if (!containsKey(utxo))
+            pendingSizeChange++;
+        pending.put(utxo, txOut == null ? NULL : txOut);
+    }
+
+    public void remove(UTXO utxo) {
+        if (!containsKey(utxo))
+            return;
+        pendingSizeChange--;
+        pending.put(utxo, REMOVED);
+    }
+
+    public int size() {
+        return table.live + pendingSizeChange;
+    }
+
+    public void forEach(BiConsumer<UTXO, Transaction.Output> action) {
+        for (int slot = 0; slot < table.capacity; slot++) {
+            if (!table.isLive(slot))
+                continue;
+            UTXO utxo = table.utxo(slot);
+            if (!pending.containsKey(utxo))
+                action.accept(utxo, output(slot));
+        }
+        for (Map.Entry<UTXO, Object> e : pending.entrySet()) {
+            if (e.getValue() != REMOVED)
+                action.accept(e.getKey(), unwrap(e.getValue()));
+        }
+    }
+
+    /**
+     * @return an in-memory copy of this store, including its uncommitted updates. This copies
+     *         every entry; a TxHandler that should update the store itself is created with
+     *         {@link TxHandler#forLedger}.
+     */
+    public UTXOStore copy() {
+        PersistentUTXOMap copy = new PersistentUTXOMap();
+        forEach(copy::put);
+        return copy;
+    }
+
+    /**
+     * Makes every update since the last commit durable as the next epoch. When this returns the
+     * epoch survives a crash; if it throws, the store must be reopened to find out whether the
+     * epoch was logged.
+     */
+    public void commit() {
+        if (pending.isEmpty())
+            return;
+        try {
+            ByteBuffer record = logRecord(epoch + 1);
+            //addresses referenced by the record must be on disk before the record is.
+            addressChannel.force(false);
+            logChannel.truncate(0);
+            while (record.hasRemaining())
+                logChannel.write(record, record.position());
+            logChannel.force(false);
+
+            record.flip();
+            apply(record);
+            checkpoint(epoch + 1);
+            logChannel.truncate(0);
+            pending.clear();
+            pendingSizeChange = 0;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /** Closes the files. Updates that were not committed are lost. */
+    public void close() throws IOException {
+        tableChannel.close();
+        addressChannel.close();
+        logChannel.close();
+    }
+
+    private static Transaction.Output unwrap(Object p) {
+        return p == NULL ? null : (Transaction.Output) p;
+    }
+
+    private Transaction.Output output(int slot) {
+        int address = table.address(slot);
+        if (address == NULL_OUTPUT)
+            return null;
+        return new Transaction.Output(table.value(slot),
+            address == NULL_ADDRESS ? null : address(address));
+    }
+
+    /** Serializes the pending updates, appending addresses not yet in the address file */
+    private ByteBuffer logRecord(long recordEpoch) throws IOException {
+        int length = MIN_RECORD_LENGTH + pending.size() * OP_SIZE;
+        ByteBuffer record = ByteBuffer.allocate(4 + length);
+        record.putInt(length);
+        record.putLong(recordEpoch);
+        record.putInt(pending.size());
+        for (Map.Entry<UTXO, Object> e : pending.entrySet()) {
+            UTXO utxo = e.getKey();
+            if (e.getValue() == REMOVED) {
+                record.put(OP_REMOVE);
+                record.put(utxo.getTxHash());
+                record.putInt(utxo.getIndex());
+                record.putLong(0);
+                record.putInt(NULL_OUTPUT);
+                continue;
+            }
+            Transaction.Output txOut = unwrap(e.getValue());
+            int address;
+            if (txOut == null)
+                address = NULL_OUTPUT;
+            else if (txOut.address == null)
+                address = NULL_ADDRESS;
+            else
+                address = addressOffset(txOut.address);
+            record.put(OP_PUT);
+            record.put(utxo.getTxHash());
+            record.putInt(utxo.getIndex());
+            record.putLong(txOut == null ? 0 : txOut.value);
+            record.putInt(address);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 4, length - 4);
+        record.putInt((int) crc.getValue());
+        record.flip();
+        return record;
+    }
+
+    /** Applies the ops of a complete log record to the table, resizing it first if needed */
+    private void apply(ByteBuffer record) throws IOException {
+        record.position(4 + 8);
+        int ops = record.getInt();
+        if (table.used + ops > table.capacity * OutpointTable.MAX_LOAD)
+            resize(table.live + ops);
+        byte[] txHash = new byte[OutpointTable.HASH_LENGTH];
+        for (int i = 0; i < ops; i++) {
+            byte op = record.get();
+            record.get(txHash);
+            int index = record.getInt();
+            long value = record.getLong();
+            int address = record.getInt();
+            key.set(new UTXO(txHash, index).hashCode(), txHash, 0, index);
+            int slot = table.find(key);
+            if (op == OP_REMOVE) {
+                if (slot >= 0)
+                    table.remove(slot);
+            } else if (slot >= 0) {
+                table.setOutput(slot, value, address);
+            } else {
+                table.insert(key, value, address);
+            }
+        }
+    }
+
+    /** Forces the table to disk and then records {@code newEpoch} as applied in its header */
+    private void checkpoint(long newEpoch) {
+        for (ByteBuffer segment : table.segments)
+            ((MappedByteBuffer) segment).force();
+        header.putInt(H_LIVE, table.live);
+        header.putInt(H_USED, table.used);
+        header.putLong(H_EPOCH, newEpoch);
+        header.force();
+        epoch = newEpoch;
+    }
+
+    /**
+     * Finishes or drops an epoch left in the log by a crash. A record is only applied if it is
+     * complete, its checksum matches and it is the epoch right after the table's.
+     */
+    private void recover() throws IOException {
+        long size = logChannel.size();
+        ByteBuffer record = null;
+        if (size >= 4 + MIN_RECORD_LENGTH) {
+            ByteBuffer length = ByteBuffer.allocate(4);
+            logChannel.read(length, 0);
+            int recordLength = length.flip().getInt();
+            if (recordLength >= MIN_RECORD_LENGTH && 4L + recordLength <= size) {
+                record = ByteBuffer.allocate(4 + recordLength);
+                readFully(logChannel, record, 0);
+                CRC32 crc = new CRC32();
+                crc.update(record.array(), 4, recordLength - 4);
+                int ops = record.getInt(4 + 8);
+                if (record.getInt(4 + recordLength - 4) != (int) crc.getValue()
+                        || record.getLong(4) != epoch + 1
+                        || recordLength != MIN_RECORD_LENGTH + (long) ops * OP_SIZE)
+                    record = null;
+            }
+        }
+        if (record != null) {
+            //the record may have been partly applied, by writes of which a power loss may have kept
+            //any subset, so torn slots are dropped and the header counts can't be trusted. Every
+            //slot written since the last checkpoint belongs to an op of the record, which writes
+            //its entry again.
+            table.removeTornSlots();
+            table.recount();
+            apply(record);
+            checkpoint(epoch + 1);
+        }
+        logChannel.truncate(0);
+        logChannel.force(false);
+    }
+
+    /** Rebuilds the table for {@code expectedSize} entries and atomically replaces the file */
+    private void resize(long expectedSize) throws IOException {
+        Path resizePath = dir.resolve(RESIZE_FILE);
+        int capacity = OutpointTable.resizedCapacity(expectedSize);
+        FileChannel channel = createTable(resizePath, capacity);
+        OutpointTable resized = mapSlots(channel, capacity);
+        for (int slot = 0; slot < table.capacity; slot++) {
+            if (table.isLive(slot))
+                resized.insertFrom(table, slot);
+        }
+        MappedByteBuffer resizedHeader = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+        for (ByteBuffer segment : resized.segments)
+            ((MappedByteBuffer) segment).force();
+        resizedHeader.putInt(H_LIVE, resized.live);
+        resizedHeader.putInt(H_USED, resized.used);
+        resizedHeader.putLong(H_EPOCH, epoch);
+        resizedHeader.force();
+        channel.close();
+        Files.move(resizePath, dir.resolve(TABLE_FILE), StandardCopyOption.ATOMIC_MOVE,
+            StandardCopyOption.REPLACE_EXISTING);
+        forceDirectory();
+        tableChannel.close();
+        mapTable();
+    }
+
+    /** Creates an empty table file of {@code capacity} slots and returns its open channel */
+    private static FileChannel createTable(Path path, int capacity) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW,
+            StandardOpenOption.READ, StandardOpenOption.WRITE);
+        ByteBuffer h = ByteBuffer.allocate(HEADER_SIZE);
+        h.putInt(H_MAGIC, MAGIC);
+        h.putInt(H_VERSION, VERSION);
+        h.putInt(H_CAPACITY, capacity);
+        channel.write(h, 0);
+        //extending the file with a single byte at the end leaves the slots zeroed, i.e. empty.
+        channel.write(ByteBuffer.allocate(1),
+            HEADER_SIZE + (long) capacity * OutpointTable.SLOT_SIZE - 1);
+        channel.force(true);
+        return channel;
+    }
+
+    private void mapTable() throws IOException {
+        tableChannel = FileChannel.open(dir.resolve(TABLE_FILE), StandardOpenOption.READ,
+            StandardOpenOption.WRITE);
+        header = tableChannel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+        if (header.getInt(H_MAGIC) != MAGIC || header.getInt(H_VERSION) != VERSION)
+            throw new IOException("not a version " + VERSION + " UTXO table: " + dir);
+        table = mapSlots(tableChannel, header.getInt(H_CAPACITY));
+        table.live = header.getInt(H_LIVE);
+        table.used = header.getInt(H_USED);
+        epoch = header.getLong(H_EPOCH);
+    }
+
+    private static OutpointTable mapSlots(FileChannel channel, int capacity) throws IOException {
+        int segmentBytes = OutpointTable.segmentBytes(capacity);
+        ByteBuffer[] segments = new ByteBuffer[OutpointTable.segmentCount(capacity)];
+        for (int i = 0; i < segments.length; i++)
+            segments[i] = channel.map(FileChannel.MapMode.READ_WRITE,
+                HEADER_SIZE + (long) i * segmentBytes, segmentBytes);
+        return new OutpointTable(capacity, segments);
+    }
+
+    /** Indexes the address file, cutting off a record left incomplete by a crash */
+    private void loadAddresses() throws IOException {
+        long size = addressChannel.size();
+        long position = 0;
+        ByteBuffer length = ByteBuffer.allocate(4);
+        while (position + 4 <= size) {
+            length.clear();
+            readFully(addressChannel, length, position);
+            int n = length.getInt(0);
+            if (n <= 0 || position + 4 + n > size)
+                break;
+            ByteBuffer encoded = ByteBuffer.allocate(n);
+            readFully(addressChannel, encoded, position + 4);
+            addressOffsets.put(encoded, (int) position);
+            position += 4 + n;
+        }
+        addressChannel.truncate(position);
+        addressFileSize = position;
+    }
+
+    /** @return the offset of {@code address} in the address file, appending it if needed */
+    private int addressOffset(PublicKey address) throws IOException {
+        ByteBuffer encoded = ByteBuffer.wrap(address.getEncoded());
+        Integer offset = addressOffsets.get(encoded);
+        if (offset != null)
+            return offset;
+        if (addressFileSize + 4 + encoded.remaining() > Integer.MAX_VALUE)
+            throw new IOException("address file is full: " + dir);
+        offset = (int) addressFileSize;
+        ByteBuffer entry = ByteBuffer.allocate(4 + encoded.remaining());
+        entry.putInt(encoded.remaining()).put(encoded.duplicate()).flip();
+        while (entry.hasRemaining())
+            addressChannel.write(entry, addressFileSize + entry.position());
+        addressFileSize += entry.capacity();
+        addressOffsets.put(encoded, offset);
+        decodedAddresses.put(offset, address);
+        return offset;
+    }
+
+    /** @return the address stored at {@code offset} of the address file */
+    private PublicKey address(int offset) {
+        PublicKey address = decodedAddresses.get(offset);
+        if (address != null)
+            return address;
+        try {
+            ByteBuffer length = ByteBuffer.allocate(4);
+            readFully(addressChannel, length, offset);
+            ByteBuffer encoded = ByteBuffer.allocate(length.getInt(0));
+            readFully(addressChannel, encoded, offset + 4L);
+            address = KeyFactory.getInstance("RSA")
+                .generatePublic(new X509EncodedKeySpec(encoded.array()));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("corrupt address at offset " + offset + " in " + dir, e);
+        }
+        decodedAddresses.put(offset, address);
+        return address;
+    }
+
+    /** Makes a rename in the store directory durable, where the platform allows it */
+    private void forceDirectory() {
+        try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            //some platforms can't open directories; the rename is still atomic there.
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer dst, long position)
+            throws IOException {
+        while (dst.hasRemaining()) {
+            if (channel.read(dst, position + dst.position()) < 0)
+                throw new EOFException();
+        }
+        dst.flip();
+    }
+}
@@ -0,0 +1,601 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * A public ledger like {@link TxHandler} whose {@code handleTxs} accepts, among the transactions of
+ * an epoch, a set that pays the highest total fee, a transaction's fee being the sum of its input
+ * values minus the sum of its output values. The accepted set has no two transactions spending the
+ * same output, and contains the in-batch parents of every transaction in it.
+ *
+ * <p>Transactions are grouped into components connected by conflicts and dependencies, which can
+ * be decided independently of one another. Each component with conflicts starts from the better of
+ * two sets: the one {@link TxHandler#handleTxs} accepts from it, and one filled greedily by fee and
+ * improved by swapping transactions in for the ones they conflict with. A branch-and-bound search
+ * then looks for a better set, to the end for components of up to {@link #EXACT_SEARCH_LIMIT}
+ * transactions and until the search budget runs out for larger ones. The total fee is therefore
+ * never lower than the one TxHandler collects from the same batch.
+ */
+public class MaxFeeTxHandler {
+
+    /** Largest component whose search always runs to the end, finding its best set */
+    public static final int EXACT_SEARCH_LIMIT = 20;
+
+    /** Default time handleTxs may spend improving the sets of large components */
+    public static final long DEFAULT_SEARCH_BUDGET_NANOS = 50_000_000L;
+
+    private final UTXOPool pool;
+    //updates pool itself, so the pool the candidates are checked against is the one updated.
+    private final TxHandler handler;
+    private final long searchBudgetNanos;
+
+    /**
+     * Creates a public ledger whose current UTXOPool is a copy of {@code utxoPool}, with the
+     * default search budget.
+     */
+    public MaxFeeTxHandler(UTXOPool utxoPool) {
+        this(utxoPool, DEFAULT_SEARCH_BUDGET_NANOS);
+    }
+
+    /**
+     * Creates a public ledger whose current UTXOPool is a copy of {@code utxoPool}, and whose
+     * {@code handleTxs} spends at most about {@code searchBudgetNanos} improving the sets of
+     * components too large to search exhaustively. The budget runs from the start of
+     * {@code handleTxs}, so the time spent building the graph of the batch counts against it.
+     */
+    public MaxFeeTxHandler(UTXOPool utxoPool, long searchBudgetNanos) {
+        if (searchBudgetNanos < 0)
+            throw new IllegalArgumentException("searchBudgetNanos must not be negative: "
+                + searchBudgetNanos);
+        this.pool = new UTXOPool(utxoPool);
+        this.handler = TxHandler.forLedger(pool, 1);
+        this.searchBudgetNanos = searchBudgetNanos;
+    }
+
+    /** @return true if {@code tx} is valid against the current pool, see TxHandler#isValidTx */
+    public boolean isValidTx(Transaction tx) {
+        return handler.isValidTx(tx);
+    }
+
+    /**
+     * Handles each epoch by receiving an unordered array of proposed transactions, choosing a
+     * mutually valid set of them with maximum total fee, returning it with each transaction after
+     * its in-batch parents, and updating the current UTXO pool.
+     */
+    public Transaction[] handleTxs(Transaction[] possibleTxs) {
+        long deadline = System.nanoTime() + searchBudgetNanos;
+        //what the fee-blind handler accepts, checked against an overlay so the pool is untouched.
+        HashSet<TxId> feeBlind = new HashSet<TxId>();
+        for (Transaction tx : TxHandler.forLedger(new OverlayUTXOPool(pool), 1)
+                .handleTxs(possibleTxs))
+            feeBlind.add(tx.getId());
+        FeeGraph graph = new FeeGraph(distinctTxs(possibleTxs));
+        boolean[] selected = graph.select(feeBlind, deadline);
+
+        //the set is conflict-free and closed under parents, so applying it in topological order
+        //accepts all of it; going through isValidTx keeps the pool rules in one place.
+        ArrayList<Transaction> validTxsList = new ArrayList<Transaction>();
+        for (int t : graph.order) {
+            Transaction tx = graph.txs.get(t);
+            if (selected[t] && handler.applyIfValid(tx))
+                validTxsList.add(tx);
+        }
+        pool.commit();
+        return validTxsList.toArray(new Transaction[0]);
+    }
+
+    //the non-null, finalized txs of the batch, keeping only the first copy of a repeated one.
+    private static ArrayList<Transaction> distinctTxs(Transaction[] possibleTxs) {
+        ArrayList<Transaction> txs = new ArrayList<Transaction>();
+        HashSet<TxId> seen = new HashSet<TxId>();
+        for (Transaction tx : possibleTxs) {
+            if (tx != null && tx.getId() != null && seen.add(tx.getId()))
+                txs.add(tx);
+        }
+        return txs;
+    }
+
+    //the candidates of an epoch: which ones can be accepted at all, their fees, their in-batch
+    //parents and children, and which ones spend the same output. The candidates spending an output
+    //all conflict with each other, so they are kept as one group per output rather than as pairs,
+    //which would take time and memory quadratic in the number of spenders of an output.
+    private final class FeeGraph {
+        final ArrayList<Transaction> txs;
+        //candidates in topological order; txs that can never be accepted are left out.
+        final int[] order;
+        final int[] position;
+        final long[] fees;
+        final int[][] parents;
+        final int[][] children;
+        //the groups of the outputs each candidate spends, and the candidates of each group.
+        final int[][] groups;
+        final int[][] spenders;
+
+        //the state of the search: the chosen txs, and the chosen spender of each group or -1.
+        final boolean[] selected;
+        final int[] spentBy;
+
+        FeeGraph(ArrayList<Transaction> txs) {
+            this.txs = txs;
+            int n = txs.size();
+            HashMap<ByteBuffer, Integer> txIndexByHash = new HashMap<ByteBuffer, Integer>();
+            for (int t = 0; t < n; t++)
+                txIndexByHash.put(ByteBuffer.wrap(txs.get(t).getId().bytes()), t);
+
+            //every output a candidate could spend, from the pool or from another candidate. A tx
+            //valid against it is valid in any set that also holds its in-batch parents.
+            UTXOPool reachable = new UTXOPool();
+            for (Transaction tx : txs) {
+                for (int i = 0; i < tx.numInputs(); i++) {
+                    byte[] prevTxHash = tx.getPrevTxHash(i);
+                    if (prevTxHash == null)
+                        continue;
+                    UTXO utxo = new UTXO(prevTxHash, tx.getOutputIndex(i));
+                    Transaction.Output output = pool.getTxOutput(utxo);
+                    if (output != null)
+                        reachable.addUTXO(utxo, output);
+                }
+            }
+            for (Transaction tx : txs) {
+                for (int i = 0; i < tx.numOutputs(); i++) {
+                    UTXO utxo = new UTXO(tx.getId(), i);
+                    if (!pool.contains(utxo))
+                        reachable.addUTXO(utxo, tx.getOutput(i));
+                }
+            }
+            TxHandler checker = TxHandler.forLedger(reachable, 1);
+
+            ArrayList<ArrayList<Integer>> childLists = new ArrayList<ArrayList<Integer>>(n);
+            parents = new int[n][];
+            fees = new long[n];
+            boolean[] valid = new boolean[n];
+            for (int t = 0; t < n; t++) {
+                childLists.add(new ArrayList<Integer>());
+                Transaction tx = txs.get(t);
+                valid[t] = checker.isValidTx(tx);
+                if (!valid[t])
+                    continue;
+                long fee = 0;
+                for (int i = 0; i < tx.numInputs(); i++) {
+                    UTXO utxo = new UTXO(tx.getPrevTxHash(i), tx.getOutputIndex(i));
+                    fee += reachable.getTxOutput(utxo).value;
+                }
+                for (int i = 0; i < tx.numOutputs(); i++)
+                    fee -= tx.getValue(i);
+                fees[t] = fee;
+            }
+            for (int t = 0; t < n; t++) {
+                Transaction tx = txs.get(t);
+                ArrayList<Integer> txParents = new ArrayList<Integer>();
+                for (int i = 0; valid[t] && i < tx.numInputs(); i++) {
+                    UTXO utxo = new UTXO(tx.getPrevTxHash(i), tx.getOutputIndex(i));
+                    if (pool.contains(utxo))
+                        continue;
+                    int parent = txIndexByHash.get(ByteBuffer.wrap(tx.getPrevTxHash(i)));
+                    if (!txParents.contains(parent)) {
+                        txParents.add(parent);
+                        childLists.get(parent).add(t);
+                    }
+                }
+                parents[t] = toArray(txParents);
+            }
+            children = new int[n][];
+            for (int t = 0; t < n; t++)
+                children[t] = toArray(childLists.get(t));
+
+            //Kahn's algorithm. A tx is a candidate if it is valid and all of its parents are; txs
+            //on a hash cycle are never reached and drop out with their descendants.
+            int[] unresolvedParents = new int[n];
+            ArrayDeque<Integer> readyTxs = new ArrayDeque<Integer>();
+            for (int t = 0; t < n; t++) {
+                unresolvedParents[t] = parents[t].length;
+                if (valid[t] && unresolvedParents[t] == 0)
+                    readyTxs.add(t);
+            }
+            position = new int[n];
+            Arrays.fill(position, -1);
+            int[] topological = new int[n];
+            int count = 0;
+            while (!readyTxs.isEmpty()) {
+                int t = readyTxs.poll();
+                position[t] = count;
+                topological[count++] = t;
+                for (int child : children[t]) {
+                    if (--unresolvedParents[child] == 0 && valid[child])
+                        readyTxs.add(child);
+                }
+            }
+            order = Arrays.copyOf(topological, count);
+
+            //one group per output spent by a candidate. A candidate spends each output at most
+            //once, since it is valid.
+            HashMap<UTXO, Integer> groupByOutput = new HashMap<UTXO, Integer>();
+            ArrayList<ArrayList<Integer>> spenderLists = new ArrayList<ArrayList<Integer>>();
+            groups = new int[n][];
+            for (int t = 0; t < n; t++)
+                groups[t] = new int[0];
+            for (int t : order) {
+                Transaction tx = txs.get(t);
+                groups[t] = new int[tx.numInputs()];
+                for (int i = 0; i < tx.numInputs(); i++) {
+                    Integer group = groupByOutput.putIfAbsent(
+                        new UTXO(tx.getPrevTxHash(i), tx.getOutputIndex(i)), spenderLists.size());
+                    if (group == null) {
+                        group = spenderLists.size();
+                        spenderLists.add(new ArrayList<Integer>());
+                    }
+                    spenderLists.get(group).add(t);
+                    groups[t][i] = group;
+                }
+            }
+            spenders = new int[spenderLists.size()][];
+            for (int g = 0; g < spenders.length; g++)
+                spenders[g] = toArray(spenderLists.get(g));
+
+            selected = new boolean[n];
+            spentBy = new int[spenders.length];
+            Arrays.fill(spentBy, -1);
+        }
+
+        //picks the set to accept, component by component, with the txs of feeBlind as one of the
+        //starting points.
+        boolean[] select(HashSet<TxId> feeBlind, long deadline) {
+            int n = txs.size();
+            int[] root = new int[n];
+            for (int t = 0; t < n; t++)
+                root[t] = t;
+            boolean[] hasConflicts = new boolean[n];
+            for (int t : order) {
+                for (int parent : parents[t])
+                    union(root, t, parent);
+                for (int group : groups[t])
+                    union(root, t, spenders[group][0]);
+            }
+            //members of each component, in topological order.
+            HashMap<Integer, ArrayList<Integer>> components =
+                new HashMap<Integer, ArrayList<Integer>>();
+            ArrayList<ArrayList<Integer>> componentList = new ArrayList<ArrayList<Integer>>();
+            for (int t : order) {
+                int r = find(root, t);
+                for (int group : groups[t]) {
+                    if (spenders[group].length > 1)
+                        hasConflicts[r] = true;
+                }
+                ArrayList<Integer> members = components.get(r);
+                if (members == null) {
+                    members = new ArrayList<Integer>();
+                    components.put(r, members);
+                    componentList.add(members);
+                }
+                members.add(t);
+            }
+
+            ArrayList<int[]> small = new ArrayList<int[]>();
+            ArrayList<int[]> large = new ArrayList<int[]>();
+            for (ArrayList<Integer> memberList : componentList) {
+                int[] members = toArray(memberList);
+                if (!hasConflicts[find(root, members[0])]) {
+                    //nothing to choose between: parents come first, so all of it fits.
+                    for (int t : members)
+                        choose(t);
+                } else {
+                    (members.length <= EXACT_SEARCH_LIMIT ? small : large).add(members);
+                }
+            }
+            //every component gets its starting set first, so each one has a set at least as good
+            //as TxHandler's even if the budget runs out during the searches.
+            for (int[] members : small)
+                start(members, feeBlind, deadline);
+            for (int[] members : large)
+                start(members, feeBlind, deadline);
+            for (int[] members : small)
+                new BranchAndBound(members).run(Long.MAX_VALUE);
+            //the large components share what is left of the budget.
+            for (int k = 0; k < large.size(); k++) {
+                long left = deadline - System.nanoTime();
+                if (left <= 0)
+                    break;
+                new BranchAndBound(large.get(k)).run(System.nanoTime() + left / (large.size() - k));
+            }
+            return selected;
+        }
+
+        //chooses the better of the members TxHandler accepted and the greedy set improved by swaps.
+        void start(int[] members, HashSet<TxId> feeBlind, long deadline) {
+            for (int t : members) {
+                if (feeBlind.contains(txs.get(t).getId()) && canChoose(t))
+                    choose(t);
+            }
+            boolean[] feeBlindSet = chosen(members);
+            long feeBlindFee = chosenFee(members);
+            clear(members);
+            int[] membersByFee = byFee(members);
+            fill(membersByFee);
+            improve(membersByFee, deadline);
+            if (feeBlindFee > chosenFee(members)) {
+                clear(members);
+                choose(members, feeBlindSet);
+            }
+        }
+
+        //which of the members are chosen, by their position in members.
+        boolean[] chosen(int[] members) {
+            boolean[] chosen = new boolean[members.length];
+            for (int k = 0; k < members.length; k++)
+                chosen[k] = selected[members[k]];
+            return chosen;
+        }
+
+        long chosenFee(int[] members) {
+            long fee = 0;
+            for (int t : members) {
+                if (selected[t])
+                    fee += fees[t];
+            }
+            return fee;
+        }
+
+        void clear(int[] members) {
+            for (int t : members) {
+                if (selected[t])
+                    unchoose(t);
+            }
+        }
+
+        //chooses the members marked in chosen, which must be a conflict-free set closed under
+        //parents, members being in topological order.
+        void choose(int[] members, boolean[] chosen) {
+            for (int k = 0; k < members.length; k++) {
+                if (chosen[k])
+                    choose(members[k]);
+            }
+        }
+
+        boolean canChoose(int t) {
+            if (selected[t] || !isFree(t))
+                return false;
+            for (int parent : parents[t]) {
+                if (!selected[parent])
+                    return false;
+            }
+            return true;
+        }
+
+        //whether no chosen tx spends an output t spends.
+        boolean isFree(int t) {
+            for (int group : groups[t]) {
+                if (spentBy[group] >= 0)
+                    return false;
+            }
+            return true;
+        }
+
+        void choose(int t) {
+            selected[t] = true;
+            for (int group : groups[t])
+                spentBy[group] = t;
+        }
+
+        void unchoose(int t) {
+            selected[t] = false;
+            for (int group : groups[t])
+                spentBy[group] = -1;
+        }
+
+        //looks for a set of a component paying more than the one chosen, by trying both choices for
+        //each member in topological order and skipping branches that can't beat the best set found
+        //so far. The branches are walked with an explicit stack, since a component can be deeper
+        //than the call stack.
+        private final class BranchAndBound {
+            final int[] members;
+            //total fee of the members from each position on, the most a branch can still gain.
+            final long[] remaining;
+            long bestFee;
+            boolean[] best;
+
+            BranchAndBound(int[] members) {
+                this.members = members;
+                remaining = new long[members.length + 1];
+                for (int k = members.length - 1; k >= 0; k--)
+                    remaining[k] = remaining[k + 1] + fees[members[k]];
+            }
+
+            //searches until the end or the deadline, then chooses the best set found.
+            void run(long deadline) {
+                best = chosen(members);
+                bestFee = chosenFee(members);
+                clear(members);
+                int n = members.length;
+                //taken[k] tells whether the branch being walked took members[k].
+                boolean[] taken = new boolean[n];
+                int k = 0;
+                long fee = 0;
+                for (long steps = 1; ; steps++) {
+                    if ((steps & 1023) == 0 && System.nanoTime() - deadline >= 0)
+                        break;
+                    if (k == n && fee > bestFee) {
+                        bestFee = fee;
+                        best = chosen(members);
+                    }
+                    if (k < n && fee + remaining[k] > bestFee) {
+                        int t = members[k];
+                        taken[k] = canChoose(t);
+                        if (taken[k]) {
+                            choose(t);
+                            fee += fees[t];
+                        }
+                        k++;
+                        continue;
+                    }
+                    //backtrack to the deepest member taken, and try the branch without it.
+                    k--;
+                    while (k >= 0 && !taken[k])
+                        k--;
+                    if (k < 0)
+                        break;
+                    unchoose(members[k]);
+                    fee -= fees[members[k]];
+                    taken[k] = false;
+                    k++;
+                }
+                clear(members);
+                choose(members, best);
+            }
+        }
+
+        //the members from the highest fee to the lowest, ties in topological order.
+        int[] byFee(int[] members) {
+            Integer[] sorted = new Integer[members.length];
+            for (int k = 0; k < members.length; k++)
+                sorted[k] = members[k];
+            Arrays.sort(sorted, (a, b) -> fees[a] != fees[b] ? Long.compare(fees[b], fees[a])
+                : Integer.compare(position[a], position[b]));
+            int[] result = new int[sorted.length];
+            for (int k = 0; k < sorted.length; k++)
+                result[k] = sorted[k];
+            return result;
+        }
+
+        //greedily adds each member, by fee, together with the ancestors it still needs.
+        void fill(int[] membersByFee) {
+            for (int t : membersByFee) {
+                if (selected[t])
+                    continue;
+                int[] txPackage = packageOf(t);
+                if (txPackage != null && fits(txPackage)) {
+                    for (int p : txPackage)
+                        choose(p);
+                }
+            }
+        }
+
+        //swaps in a member with its missing ancestors whenever they pay more than the chosen txs
+        //they conflict with and those txs' chosen descendants, until no swap helps or time is up.
+        void improve(int[] membersByFee, long deadline) {
+            boolean improved = true;
+            while (improved && System.nanoTime() - deadline < 0) {
+                improved = false;
+                for (int t : membersByFee) {
+                    if (System.nanoTime() - deadline >= 0)
+                        return;
+                    if (selected[t])
+                        continue;
+                    int[] txPackage = packageOf(t);
+                    if (txPackage == null)
+                        continue;
+                    int[] evicted = evictedBy(txPackage);
+                    if (evicted == null)
+                        continue;
+                    long gain = 0;
+                    for (int p : txPackage)
+                        gain += fees[p];
+                    for (int e : evicted)
+                        gain -= fees[e];
+                    if (gain <= 0)
+                        continue;
+                    for (int e : evicted)
+                        unchoose(e);
+                    for (int p : txPackage)
+                        choose(p);
+                    improved = true;
+                }
+                //evicted descendants may fit again next to what replaced their ancestors.
+                if (improved)
+                    fill(membersByFee);
+            }
+        }
+
+        //t and its unchosen ancestors in topological order, or null if two of them conflict.
+        int[] packageOf(int t) {
+            ArrayList<Integer> txPackage = new ArrayList<Integer>();
+            HashSet<Integer> seen = new HashSet<Integer>();
+            ArrayDeque<Integer> pending = new ArrayDeque<Integer>();
+            pending.add(t);
+            seen.add(t);
+            while (!pending.isEmpty()) {
+                int p = pending.poll();
+                txPackage.add(p);
+                for (int parent : parents[p]) {
+                    if (!selected[parent] && seen.add(parent))
+                        pending.add(parent);
+                }
+            }
+            HashSet<Integer> spentGroups = new HashSet<Integer>();
+            for (int p : txPackage) {
+                for (int group : groups[p]) {
+                    if (!spentGroups.add(group))
+                        return null;
+                }
+            }
+            int[] result = toArray(txPackage);
+            sortByPosition(result);
+            return result;
+        }
+
+        //whether none of txPackage conflicts with a chosen tx.
+        boolean fits(int[] txPackage) {
+            for (int p : txPackage) {
+                if (!isFree(p))
+                    return false;
+            }
+            return true;
+        }
+
+        //the chosen txs that conflict with txPackage and their chosen descendants, or null if the
+        //package needs one of them as an ancestor.
+        int[] evictedBy(int[] txPackage) {
+            HashSet<Integer> evicted = new HashSet<Integer>();
+            ArrayDeque<Integer> pending = new ArrayDeque<Integer>();
+            for (int p : txPackage) {
+                for (int group : groups[p]) {
+                    int other = spentBy[group];
+                    if (other >= 0 && evicted.add(other))
+                        pending.add(other);
+                }
+            }
+            while (!pending.isEmpty()) {
+                for (int child : children[pending.poll()]) {
+                    if (selected[child] && evicted.add(child))
+                        pending.add(child);
+                }
+            }
+            for (int p : txPackage) {
+                for (int parent : parents[p]) {
+                    if (evicted.contains(parent))
+                        return null;
+                }
+            }
+            return toArray(new ArrayList<Integer>(evicted));
+        }
+
+        void sortByPosition(int[] ts) {
+            for (int k = 0; k < ts.length; k++)
+                ts[k] = position[ts[k]];
+            Arrays.sort(ts);
+            for (int k = 0; k < ts.length; k++)
+                ts[k] = order[ts[k]];
+        }
+    }
+
+    private static int find(int[] root, int t) {
+        while (root[t] != t) {
+            root[t] = root[root[t]];
+            t = root[t];
+        }
+        return t;
+    }
+
+    private static void union(int[] root, int a, int b) {
+        root[find(root, a)] = find(root, b);
+    }
+
+    private static int[] toArray(ArrayList<Integer> list) {
+        int[] array = new int[list.size()];
+        for (int k = 0; k < array.length; k++)
+            array[k] = list.get(k);
+        return array;
+    }
+}
@@ -0,0 +1,200 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Transactions accepted one at a time between epochs. Each transaction is validated when it
+ * arrives, with {@link TxHandler#isValidTx(Transaction)}, against the ledger plus the outputs of
+ * the transactions accepted before it, so closing an epoch only has to apply the accepted ones to
+ * the ledger. A transaction spending outputs of a transaction that hasn't arrived yet is kept as
+ * an orphan, in a pool of bounded size that drops the oldest orphan when it is full, and is tried
+ * again as soon as its missing parents are accepted. Since the mempool forgets transactions once
+ * their epoch is closed, one spending outputs of an earlier epoch that were already spent, or that
+ * never existed, can't be told apart from an orphan, and waits in the orphan pool until dropped.
+ *
+ * <p>Between epochs the ledger must only change through {@link #closeEpoch()}. The mempool is
+ * thread-safe.
+ */
+public class Mempool {
+
+    /** What {@link #add} did with a transaction */
+    public enum Result {
+        /** the transaction is valid and was accepted */
+        ACCEPTED,
+        /** the transaction spends outputs of transactions that weren't seen yet and was parked */
+        ORPHAN,
+        /** the transaction is already accepted or parked */
+        DUPLICATE,
+        /** the transaction is invalid or conflicts with an accepted one */
+        INVALID
+    }
+
+    private final UTXOPool ledger;
+    /** The ledger with the accepted transactions applied, kept as a delta over it */
+    private final OverlayUTXOPool view;
+    private final TxHandler viewHandler;
+    private final int maxOrphans;
+
+    /** Accepted transactions in the order they were accepted, which respects their dependencies */
+    private final LinkedHashMap<TxId, Transaction> accepted =
+        new LinkedHashMap<TxId, Transaction>();
+    /** UTXOs of the ledger or of accepted transactions that an accepted transaction spends */
+    private final HashMap<UTXO, TxId> spentBy = new HashMap<UTXO, TxId>();
+    /** Orphans from the oldest to the newest */
+    private final LinkedHashMap<TxId, Orphan> orphans = new LinkedHashMap<TxId, Orphan>();
+    /** Orphans waiting for each missing parent */
+    private final HashMap<TxId, ArrayList<TxId>> orphansByParent =
+        new HashMap<TxId, ArrayList<TxId>>();
+
+    private static final class Orphan {
+        final Transaction tx;
+        final ArrayList<TxId> missingParents;
+
+        Orphan(Transaction tx, ArrayList<TxId> missingParents) {
+            this.tx = tx;
+            this.missingParents = missingParents;
+        }
+    }
+
+    /** Creates an empty mempool on {@code ledger} that keeps up to {@code maxOrphans} orphans */
+    public Mempool(UTXOPool ledger, int maxOrphans) {
+        if (maxOrphans < 0)
+            throw new IllegalArgumentException("maxOrphans must not be negative: " + maxOrphans);
+        this.ledger = ledger;
+        this.view = new OverlayUTXOPool(ledger);
+        this.viewHandler = TxHandler.forLedger(view, 1);
+        this.maxOrphans = maxOrphans;
+    }
+
+    /**
+     * Validates {@code tx}, which must be finalized, and accepts it or parks it as an orphan.
+     * Accepting a transaction also accepts the orphans that were only waiting for it.
+     */
+    public synchronized Result add(Transaction tx) {
+        Result result = tryAdd(tx);
+        if (result == Result.ACCEPTED)
+            promoteOrphans(tx.getId());
+        return result;
+    }
+
+    private Result tryAdd(Transaction tx) {
+        if (tx == null || tx.getId() == null)
+            return Result.INVALID;
+        TxId id = tx.getId();
+        if (accepted.containsKey(id) || orphans.containsKey(id))
+            return Result.DUPLICATE;
+
+        ArrayList<TxId> missingParents = null;
+        for (int i = 0; i < tx.numInputs(); i++) {
+            byte[] prevTxHash = tx.getPrevTxHash(i);
+            if (prevTxHash == null)
+                return Result.INVALID;
+            UTXO utxo = new UTXO(prevTxHash, tx.getOutputIndex(i));
+            if (view.contains(utxo))
+                continue;
+            //an output that is gone because an accepted tx spent it, or that an accepted tx doesn't
+            //have, can't become available later.
+            TxId parent = TxId.of(prevTxHash);
+            if (spentBy.containsKey(utxo) || accepted.containsKey(parent))
+                return Result.INVALID;
+            if (missingParents == null)
+                missingParents = new ArrayList<TxId>();
+            if (!missingParents.contains(parent))
+                missingParents.add(parent);
+        }
+        if (missingParents != null) {
+            park(tx, missingParents);
+            return Result.ORPHAN;
+        }
+
+        if (!viewHandler.applyIfValid(tx))
+            return Result.INVALID;
+        accepted.put(id, tx);
+        for (int i = 0; i < tx.numInputs(); i++)
+            spentBy.put(new UTXO(tx.getPrevTxHash(i), tx.getOutputIndex(i)), id);
+        return Result.ACCEPTED;
+    }
+
+    /** Retries the orphans waiting for {@code parent}, then those waiting for the ones accepted */
+    private void promoteOrphans(TxId parent) {
+        ArrayDeque<TxId> acceptedParents = new ArrayDeque<TxId>();
+        acceptedParents.add(parent);
+        while (!acceptedParents.isEmpty()) {
+            ArrayList<TxId> waiting = orphansByParent.remove(acceptedParents.poll());
+            if (waiting == null)
+                continue;
+            for (TxId id : waiting) {
+                Orphan orphan = orphans.get(id);
+                if (orphan == null)
+                    continue;
+                //it is parked again if it still misses another parent.
+                removeOrphan(id);
+                if (tryAdd(orphan.tx) == Result.ACCEPTED)
+                    acceptedParents.add(id);
+            }
+        }
+    }
+
+    private void park(Transaction tx, ArrayList<TxId> missingParents) {
+        if (maxOrphans == 0)
+            return;
+        if (orphans.size() >= maxOrphans) {
+            Iterator<TxId> oldest = orphans.keySet().iterator();
+            removeOrphan(oldest.next());
+        }
+        orphans.put(tx.getId(), new Orphan(tx, missingParents));
+        for (TxId parent : missingParents)
+            orphansByParent.computeIfAbsent(parent, p -> new ArrayList<TxId>()).add(tx.getId());
+    }
+
+    private void removeOrphan(TxId id) {
+        Orphan orphan = orphans.remove(id);
+        for (TxId parent : orphan.missingParents) {
+            ArrayList<TxId> waiting = orphansByParent.get(parent);
+            if (waiting == null)
+                continue;
+            waiting.remove(id);
+            if (waiting.isEmpty())
+                orphansByParent.remove(parent);
+        }
+    }
+
+    /**
+     * Ends the epoch: applies the accepted transactions to the ledger, commits it, and empties the
+     * mempool except for the orphans, which keep waiting for their parents.
+     *
+     * @return the accepted transactions, each one after the transactions it spends outputs of
+     */
+    public synchronized Transaction[] closeEpoch() {
+        Transaction[] txs = accepted.values().toArray(new Transaction[0]);
+        //the view is the ledger with exactly these transactions applied, so writing its delta
+        //applies them without checking or even reading them again.
+        view.mergeIntoBase();
+        ledger.commit();
+        accepted.clear();
+        spentBy.clear();
+        return txs;
+    }
+
+    /** @return the number of accepted transactions */
+    public synchronized int size() {
+        return accepted.size();
+    }
+
+    /** @return the number of orphans */
+    public synchronized int orphanCount() {
+        return orphans.size();
+    }
+
+    /** @return true if the transaction with id {@code id} is accepted */
+    public synchronized boolean contains(TxId id) {
+        return accepted.containsKey(id);
+    }
+
+    /** @return true if the transaction with id {@code id} is parked as an orphan */
+    public synchronized boolean isOrphan(TxId id) {
+        return orphans.containsKey(id);
+    }
+}
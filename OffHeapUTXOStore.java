@@ -0,0 +1,254 @@
+import java.security.PublicKey;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.function.BiConsumer;
+
+/**
+ * A UTXOStore that keeps its entries outside the Java heap, in an {@link OutpointTable} made of
+ * direct ByteBuffers. Each slot holds the 36-byte outpoint (transaction hash and output index)
+ * and the output's value and address, where the address is an index into a deduplicated table of
+ * keys kept on the heap. A million UTXOs cost a few dozen megabytes of native memory and nothing
+ * the garbage collector has to trace.
+ *
+ * <p>Only 32-byte transaction hashes, the size of a SHA-256 digest, can be stored. When the table
+ * fills up it is resized incrementally: a new table is allocated and every following update moves
+ * a few slots of the old one over, so no single update pays for rehashing every entry.
+ *
+ * <p>Outputs returned by {@link #get} are new objects on every call, so changing them does not
+ * change the store. Like the default store, this class is not thread-safe.
+ */
+public class OffHeapUTXOStore implements UTXOStore {
+
+    /** Length of the transaction hashes this store accepts */
+    public static final int HASH_LENGTH = OutpointTable.HASH_LENGTH;
+
+    //stored in place of an address index.
+    private static final int NULL_OUTPUT = -1;
+    private static final int NULL_ADDRESS = -2;
+
+    /** Number of old slots moved to the new table by every update while resizing */
+    private static final int MIGRATE_STEP = 64;
+
+    private OutpointTable table;
+    /** The table being migrated into {@code table}, or null when no resize is in progress */
+    private OutpointTable old;
+    private int migrated;
+    private final AddressTable addresses;
+
+    /** The key of the operation in progress */
+    private final OutpointTable.Key key = new OutpointTable.Key();
+
+    /** Creates a new empty store */
+    public OffHeapUTXOStore() {
+        this(0);
+    }
+
+    /** Creates a new empty store with room for about {@code expectedSize} UTXOs before resizing */
+    public OffHeapUTXOStore(int expectedSize) {
+        table = OutpointTable.allocateDirect(OutpointTable.capacityFor(expectedSize));
+        addresses = new AddressTable();
+    }
+
+    private OffHeapUTXOStore(OffHeapUTXOStore store) {
+        table = store.table.copyDirect();
+        old = store.old == null ? null : store.old.copyDirect();
+        migrated = store.migrated;
+        addresses = store.addresses.copy();
+    }
+
+    public Transaction.Output get(UTXO utxo) {
+        if (!key.set(utxo))
+            return null;
+        OutpointTable t = table;
+        int slot = t.find(key);
+        if (slot < 0 && old != null) {
+            t = old;
+            slot = t.find(key);
+        }
+        if (slot < 0)
+            return null;
+        return output(t, slot);
+    }
+
+    public boolean containsKey(UTXO utxo) {
+        if (!key.set(utxo))
+            return false;
+        return table.find(key) >= 0 || old != null && old.find(key) >= 0;
+    }
+
+    /**
+     * Maps {@code utxo} to {@code txOut}, replacing any previous mapping
+     * @throws IllegalArgumentException if the transaction hash of {@code utxo} is not 32 bytes long
+     */
+    public void put(UTXO utxo, Transaction.Output txOut) {
+        if (!key.set(utxo))
+            throw new IllegalArgumentException("transaction hashes must be " + HASH_LENGTH
+                + " bytes long, not " + utxo.getTxHash().length);
+        ensureCapacity();
+        migrate(MIGRATE_STEP);
+        //once the key is written to the new table, the old table must not have it anymore.
+        if (old != null)
+            removeFrom(old);
+
+        int address;
+        if (txOut == null)
+            address = NULL_OUTPUT;
+        else if (txOut.address == null)
+            address = NULL_ADDRESS;
+        else
+            address = addresses.acquire(txOut.address);
+        long value = txOut == null ? 0 : txOut.value;
+
+        int slot = table.find(key);
+        if (slot >= 0) {
+            addresses.release(table.address(slot));
+            table.setOutput(slot, value, address);
+        } else {
+            table.insert(key, value, address);
+        }
+    }
+
+    public void remove(UTXO utxo) {
+        if (!key.set(utxo))
+            return;
+        migrate(MIGRATE_STEP);
+        removeFrom(table);
+        if (old != null)
+            removeFrom(old);
+    }
+
+    public int size() {
+        return table.live + (old == null ? 0 : old.live);
+    }
+
+    public void forEach(BiConsumer<UTXO, Transaction.Output> action) {
+        forEach(table, action);
+        if (old != null)
+            forEach(old, action);
+    }
+
+    /** @return a copy of this store. Unlike the default store, this copies every entry. */
+    public OffHeapUTXOStore copy() {
+        return new OffHeapUTXOStore(this);
+    }
+
+    private void forEach(OutpointTable t, BiConsumer<UTXO, Transaction.Output> action) {
+        for (int slot = 0; slot < t.capacity; slot++) {
+            if (t.isLive(slot))
+                action.accept(t.utxo(slot), output(t, slot));
+        }
+    }
+
+    private Transaction.Output output(OutpointTable t, int slot) {
+        int address = t.address(slot);
+        if (address == NULL_OUTPUT)
+            return null;
+        return new Transaction.Output(t.value(slot),
+            address == NULL_ADDRESS ? null : addresses.get(address));
+    }
+
+    private void removeFrom(OutpointTable t) {
+        int slot = t.find(key);
+        if (slot < 0)
+            return;
+        addresses.release(t.address(slot));
+        t.remove(slot);
+    }
+
+    /** Starts a resize if the next insertion would push the table past its maximum load */
+    private void ensureCapacity() {
+        if (table.hasRoom())
+            return;
+        //the previous resize has to be finished before starting another one.
+        if (old != null)
+            migrate(Integer.MAX_VALUE);
+        //the new table must hold the live entries plus everything inserted until the migration
+        //finishes, and every update migrates MIGRATE_STEP slots. A table full of removed slots may
+        //shrink, otherwise it doubles.
+        old = table;
+        migrated = 0;
+        table = OutpointTable.allocateDirect(
+            OutpointTable.resizedCapacity((long) old.live + old.capacity / MIGRATE_STEP + 1));
+    }
+
+    /** Moves up to {@code count} slots of the old table to the current one */
+    private void migrate(int count) {
+        if (old == null)
+            return;
+        int end = (int) Math.min(old.capacity, (long) migrated + count);
+        for (; migrated < end; migrated++) {
+            if (!old.isLive(migrated))
+                continue;
+            table.insertFrom(old, migrated);
+            //lookups still search the old table, so it must not find the moved entry there.
+            old.remove(migrated);
+        }
+        if (migrated == old.capacity)
+            old = null;
+    }
+
+    /**
+     * The addresses referenced by the slots, each stored once with a count of the slots using it so
+     * that its index can be reused once no UTXO pays to it anymore.
+     */
+    private static final class AddressTable {
+        private final HashMap<PublicKey, Integer> ids;
+        private final ArrayList<PublicKey> keys;
+        private int[] refCounts;
+        private final ArrayDeque<Integer> freeIds;
+
+        AddressTable() {
+            ids = new HashMap<PublicKey, Integer>();
+            keys = new ArrayList<PublicKey>();
+            refCounts = new int[16];
+            freeIds = new ArrayDeque<Integer>();
+        }
+
+        private AddressTable(AddressTable table) {
+            ids = new HashMap<PublicKey, Integer>(table.ids);
+            keys = new ArrayList<PublicKey>(table.keys);
+            refCounts = table.refCounts.clone();
+            freeIds = new ArrayDeque<Integer>(table.freeIds);
+        }
+
+        AddressTable copy() {
+            return new AddressTable(this);
+        }
+
+        /** @return the index of {@code key}, adding it if needed, and counts one more use of it */
+        int acquire(PublicKey key) {
+            Integer id = ids.get(key);
+            if (id == null) {
+                if (freeIds.isEmpty()) {
+                    id = keys.size();
+                    keys.add(key);
+                    if (id == refCounts.length)
+                        refCounts = Arrays.copyOf(refCounts, 2 * id);
+                } else {
+                    id = freeIds.pop();
+                    keys.set(id, key);
+                }
+                ids.put(key, id);
+            }
+            refCounts[id]++;
+            return id;
+        }
+
+        /** Counts one less use of address {@code id}, which may be NULL_OUTPUT or NULL_ADDRESS */
+        void release(int id) {
+            if (id < 0)
+                return;
+            if (--refCounts[id] == 0) {
+                ids.remove(keys.get(id));
+                keys.set(id, null);
+                freeIds.push(id);
+            }
+        }
+
+        PublicKey get(int id) {
+            return keys.get(id);
+        }
+    }
+}
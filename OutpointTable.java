@@ -0,0 +1,330 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * A linear-probing hash table of fixed-size slots, each holding a 36-byte outpoint (32-byte
+ * transaction hash and output index) together with an output value, an address reference and a
+ * checksum of the slot, which tells a slot torn by a power loss in the middle of its write. The
+ * slots live in ByteBuffer segments of at most 2^SEGMENT_SHIFT slots, which may be direct or
+ * memory-mapped buffers; this class only does the probing and slot encoding shared by the stores
+ * built on it.
+ */
+class OutpointTable {
+
+    /** Length of the transaction hashes a table can hold */
+    static final int HASH_LENGTH = 32;
+
+    //slot layout. The tag is 0 for an empty slot, 1 for a removed one, and the UTXO's hash code
+    //with bit 1 set otherwise, so most mismatching slots are skipped without reading the key.
+    private static final int TAG = 0;
+    private static final int TX_HASH = 4;
+    private static final int INDEX = TX_HASH + HASH_LENGTH;
+    private static final int VALUE = INDEX + 4;
+    private static final int ADDRESS = VALUE + 8;
+    private static final int CHECKSUM = ADDRESS + 4;
+    static final int SLOT_SIZE = CHECKSUM + 4;
+
+    private static final int EMPTY = 0;
+    private static final int TOMBSTONE = 1;
+
+    static final int SEGMENT_SHIFT = 16;
+    static final int MIN_CAPACITY = 16;
+    static final double MAX_LOAD = 0.7;
+
+    private static final VarHandle LONG_VIEW =
+        MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+    final int capacity;
+    final int mask;
+    final ByteBuffer[] segments;
+    /** Number of slots holding an entry */
+    int live;
+    /** Number of slots that are not empty, including removed ones */
+    int used;
+
+    /** Creates a table over {@code segments}, which must be laid out as {@link #segmentBytes} says */
+    OutpointTable(int capacity, ByteBuffer[] segments) {
+        this.capacity = capacity;
+        this.mask = capacity - 1;
+        this.segments = segments;
+    }
+
+    /** @return an empty table of {@code capacity} slots in direct buffers */
+    static OutpointTable allocateDirect(int capacity) {
+        ByteBuffer[] segments = new ByteBuffer[segmentCount(capacity)];
+        //direct buffers start zeroed, which marks every slot as empty.
+        for (int i = 0; i < segments.length; i++)
+            segments[i] = ByteBuffer.allocateDirect(segmentBytes(capacity));
+        return new OutpointTable(capacity, segments);
+    }
+
+    /** @return a copy of this table in new direct buffers */
+    OutpointTable copyDirect() {
+        ByteBuffer[] copies = new ByteBuffer[segments.length];
+        for (int i = 0; i < segments.length; i++) {
+            ByteBuffer source = segments[i].duplicate();
+            source.clear();
+            copies[i] = ByteBuffer.allocateDirect(source.capacity()).put(source);
+        }
+        OutpointTable table = new OutpointTable(capacity, copies);
+        table.live = live;
+        table.used = used;
+        return table;
+    }
+
+    /** @return the number of segments of a table with {@code capacity} slots */
+    static int segmentCount(int capacity) {
+        return Math.max(1, capacity >>> SEGMENT_SHIFT);
+    }
+
+    /** @return the size in bytes of each segment of a table with {@code capacity} slots */
+    static int segmentBytes(int capacity) {
+        return Math.min(capacity, 1 << SEGMENT_SHIFT) * SLOT_SIZE;
+    }
+
+    /** @return the smallest power of two that holds {@code size} entries at half the maximum load */
+    static int capacityFor(long size) {
+        return capacityFor(size, MAX_LOAD / 2);
+    }
+
+    /**
+     * @return the capacity to resize a table to so that it holds {@code size} entries, the smallest
+     *         power of two that does so within the maximum load. A table resized because it is full
+     *         thus doubles, and starts over at half the maximum load.
+     */
+    static int resizedCapacity(long size) {
+        return capacityFor(size, MAX_LOAD);
+    }
+
+    private static int capacityFor(long size, double load) {
+        int capacity = MIN_CAPACITY;
+        while (size > capacity * load) {
+            if (capacity == 1 << 30)
+                throw new IllegalStateException("too many UTXOs: " + size);
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+    /** @return true if one more entry can be inserted without exceeding the maximum load */
+    boolean hasRoom() {
+        return used + 1 <= capacity * MAX_LOAD;
+    }
+
+    /**
+     * An outpoint split into the longs that are compared against the slots. Stores keep one and
+     * reuse it for every operation, so probing allocates nothing.
+     */
+    static final class Key {
+        int tag;
+        long hash0, hash1, hash2, hash3;
+        int index;
+
+        /** @return false if {@code utxo} can't be stored in a table, otherwise makes it this key */
+        boolean set(UTXO utxo) {
+            byte[] txHash = utxo.getTxHash();
+            if (txHash.length != HASH_LENGTH)
+                return false;
+            set(utxo.hashCode(), txHash, 0, utxo.getIndex());
+            return true;
+        }
+
+        /** Makes this key the outpoint with the given hash code, whose hash starts at {@code offset} */
+        void set(int hashCode, byte[] txHash, int offset, int index) {
+            tag = hashCode | 2;
+            hash0 = (long) LONG_VIEW.get(txHash, offset);
+            hash1 = (long) LONG_VIEW.get(txHash, offset + 8);
+            hash2 = (long) LONG_VIEW.get(txHash, offset + 16);
+            hash3 = (long) LONG_VIEW.get(txHash, offset + 24);
+            this.index = index;
+        }
+    }
+
+    /** @return the slot of {@code key}, or -1 */
+    int find(Key key) {
+        int slot = spread(key.tag) & mask;
+        for (int probes = 0; probes < capacity; probes++) {
+            ByteBuffer segment = segment(slot);
+            int offset = offset(slot);
+            int tag = segment.getInt(offset + TAG);
+            if (tag == EMPTY)
+                return -1;
+            if (tag == key.tag
+                    && segment.getInt(offset + INDEX) == key.index
+                    && segment.getLong(offset + TX_HASH) == key.hash0
+                    && segment.getLong(offset + TX_HASH + 8) == key.hash1
+                    && segment.getLong(offset + TX_HASH + 16) == key.hash2
+                    && segment.getLong(offset + TX_HASH + 24) == key.hash3)
+                return slot;
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * Inserts {@code key}, which must not be in the table, and returns its slot. The tag is written
+     * last, so an insert interrupted by a crash of the process leaves at most an unused slot
+     * behind. One interrupted by a power loss may leave any mix of its writes, which the checksum
+     * catches.
+     */
+    int insert(Key key, long value, int address) {
+        int slot = insertionSlot(key.tag);
+        ByteBuffer segment = segment(slot);
+        int offset = offset(slot);
+        segment.putLong(offset + TX_HASH, key.hash0);
+        segment.putLong(offset + TX_HASH + 8, key.hash1);
+        segment.putLong(offset + TX_HASH + 16, key.hash2);
+        segment.putLong(offset + TX_HASH + 24, key.hash3);
+        segment.putInt(offset + INDEX, key.index);
+        segment.putLong(offset + VALUE, value);
+        segment.putInt(offset + ADDRESS, address);
+        segment.putInt(offset + CHECKSUM, checksum(key.tag, key.hash0, key.hash1, key.hash2,
+            key.hash3, key.index, value, address));
+        segment.putInt(offset + TAG, key.tag);
+        live++;
+        return slot;
+    }
+
+    /** Inserts the entry in {@code slot} of {@code from}, whose key must not be in this table */
+    void insertFrom(OutpointTable from, int slot) {
+        ByteBuffer source = from.segment(slot);
+        int sourceOffset = offset(slot);
+        int tag = source.getInt(sourceOffset + TAG);
+        int target = insertionSlot(tag);
+        ByteBuffer segment = segment(target);
+        int offset = offset(target);
+        for (int i = TX_HASH; i < SLOT_SIZE; i += 4)
+            segment.putInt(offset + i, source.getInt(sourceOffset + i));
+        segment.putInt(offset + TAG, tag);
+        live++;
+    }
+
+    /** Marks {@code slot} as removed */
+    void remove(int slot) {
+        segment(slot).putInt(offset(slot) + TAG, TOMBSTONE);
+        live--;
+    }
+
+    /** @return true if {@code slot} holds an entry */
+    boolean isLive(int slot) {
+        int tag = segment(slot).getInt(offset(slot) + TAG);
+        return tag != EMPTY && tag != TOMBSTONE;
+    }
+
+    /** Sets the value and address of the entry in {@code slot} */
+    void setOutput(int slot, long value, int address) {
+        ByteBuffer segment = segment(slot);
+        int offset = offset(slot);
+        segment.putLong(offset + VALUE, value);
+        segment.putInt(offset + ADDRESS, address);
+        segment.putInt(offset + CHECKSUM, checksum(segment, offset, value, address));
+    }
+
+    long value(int slot) {
+        return segment(slot).getLong(offset(slot) + VALUE);
+    }
+
+    int address(int slot) {
+        return segment(slot).getInt(offset(slot) + ADDRESS);
+    }
+
+    /** @return a new UTXO for the entry in {@code slot} */
+    UTXO utxo(int slot) {
+        byte[] txHash = new byte[HASH_LENGTH];
+        ByteBuffer segment = segment(slot);
+        int offset = offset(slot);
+        segment.get(offset + TX_HASH, txHash);
+        return new UTXO(txHash, segment.getInt(offset + INDEX));
+    }
+
+    /**
+     * Marks the slots whose checksum doesn't match as removed, and returns how many there were.
+     * Only the slots written since the table was last forced to disk can be torn, so the store
+     * must write their entries again afterwards; then {@link #recount()} fixes the counts.
+     */
+    int removeTornSlots() {
+        int torn = 0;
+        for (int slot = 0; slot < capacity; slot++) {
+            ByteBuffer segment = segment(slot);
+            int offset = offset(slot);
+            int tag = segment.getInt(offset + TAG);
+            if (tag == EMPTY || tag == TOMBSTONE)
+                continue;
+            if (segment.getInt(offset + CHECKSUM) != checksum(segment, offset,
+                    segment.getLong(offset + VALUE), segment.getInt(offset + ADDRESS))) {
+                //a removed slot keeps the probe sequences through it intact, whatever it held.
+                segment.putInt(offset + TAG, TOMBSTONE);
+                torn++;
+            }
+        }
+        return torn;
+    }
+
+    /** Recomputes {@code live} and {@code used} from the slots */
+    void recount() {
+        live = 0;
+        used = 0;
+        for (int slot = 0; slot < capacity; slot++) {
+            int tag = segment(slot).getInt(offset(slot) + TAG);
+            if (tag != EMPTY)
+                used++;
+            if (tag != EMPTY && tag != TOMBSTONE)
+                live++;
+        }
+    }
+
+    /** @return the first free slot for {@code tag}, counting it as used if it was empty */
+    private int insertionSlot(int tag) {
+        int slot = spread(tag) & mask;
+        while (true) {
+            int current = segment(slot).getInt(offset(slot) + TAG);
+            if (current == EMPTY) {
+                used++;
+                return slot;
+            }
+            if (current == TOMBSTONE)
+                return slot;
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    /** @return the checksum of the entry at {@code offset} of {@code segment} with this output */
+    private static int checksum(ByteBuffer segment, int offset, long value, int address) {
+        return checksum(segment.getInt(offset + TAG), segment.getLong(offset + TX_HASH),
+            segment.getLong(offset + TX_HASH + 8), segment.getLong(offset + TX_HASH + 16),
+            segment.getLong(offset + TX_HASH + 24), segment.getInt(offset + INDEX), value, address);
+    }
+
+    /**
+     * @return a checksum of the fields of a slot. Every field goes through a multiply, so a slot
+     *         holding a mix of an old and a new version of its fields is caught unless the two
+     *         checksums collide, which happens with a chance of about 2^-32.
+     */
+    private static int checksum(int tag, long hash0, long hash1, long hash2, long hash3, int index,
+            long value, int address) {
+        long c = tag;
+        c = (c ^ hash0) * 0x9E3779B97F4A7C15L;
+        c = (c ^ hash1) * 0x9E3779B97F4A7C15L;
+        c = (c ^ hash2) * 0x9E3779B97F4A7C15L;
+        c = (c ^ hash3) * 0x9E3779B97F4A7C15L;
+        c = (c ^ index) * 0x9E3779B97F4A7C15L;
+        c = (c ^ value) * 0x9E3779B97F4A7C15L;
+        c = (c ^ address) * 0x9E3779B97F4A7C15L;
+        return (int) (c ^ (c >>> 32));
+    }
+
+    private ByteBuffer segment(int slot) {
+        return segments[slot >>> SEGMENT_SHIFT];
+    }
+
+    private static int offset(int slot) {
+        return (slot & ((1 << SEGMENT_SHIFT) - 1)) * SLOT_SIZE;
+    }
+
+    private static int spread(int h) {
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
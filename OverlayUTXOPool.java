@@ -0,0 +1,179 @@
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+/**
+ * A UTXOPool layered over a base pool: reads go through to the base, while additions and removals
+ * are kept in a delta of their own and leave the base untouched until {@link #mergeIntoBase()}
+ * writes them to it. Creating, merging and discarding an overlay take time proportional to its
+ * delta, however large the base is, so a candidate batch can be tried with
+ * {@code TxHandler.forLedger(new OverlayUTXOPool(base), p).handleTxs(txs)} without copying the
+ * base, and kept or dropped afterwards.
+ *
+ * <p>Several overlays over the same base may be used concurrently, one per thread, as long as the
+ * base doesn't change meanwhile and its store allows concurrent reads, as {@link PersistentUTXOMap}
+ * and {@link ConcurrentUTXOStore} do. Once one of them is merged, the others were built on a base
+ * that no longer exists and should be discarded.
+ */
+public class OverlayUTXOPool extends UTXOPool {
+
+    private final UTXOPool base;
+    private final Delta delta;
+
+    /** Creates an overlay over {@code base} with an empty delta */
+    public OverlayUTXOPool(UTXOPool base) {
+        this(base, new Delta(base, new HashMap<UTXO, Object>(), 0));
+    }
+
+    private OverlayUTXOPool(UTXOPool base, Delta delta) {
+        super(delta);
+        this.base = base;
+        this.delta = delta;
+    }
+
+    /** @return the pool this overlay reads through to */
+    public UTXOPool getBase() {
+        return base;
+    }
+
+    /** @return the number of UTXOs this overlay added or removed relative to its base */
+    public int deltaSize() {
+        return delta.changes.size();
+    }
+
+    /**
+     * Writes the changes of this overlay to the base as one update, and empties the delta, so the
+     * overlay reads the same as its base afterwards. The base isn't committed; a base backed by a
+     * persistent store still needs {@link UTXOPool#commit()} to make the changes durable.
+     */
+    public void mergeIntoBase() {
+        ArrayList<UTXO> removed = new ArrayList<UTXO>();
+        ArrayList<UTXO> added = new ArrayList<UTXO>();
+        ArrayList<Transaction.Output> addedOutputs = new ArrayList<Transaction.Output>();
+        for (Map.Entry<UTXO, Object> change : delta.changes.entrySet()) {
+            if (change.getValue() == Delta.REMOVED) {
+                removed.add(change.getKey());
+            } else {
+                added.add(change.getKey());
+                addedOutputs.add((Transaction.Output) change.getValue());
+            }
+        }
+        base.update(removed, added, addedOutputs);
+        discard();
+    }
+
+    /** Drops the changes of this overlay, so it reads the same as its base again */
+    public void discard() {
+        delta.changes.clear();
+        delta.sizeChange = 0;
+        //the index only held the changes, so it starts over empty.
+        if (isAddressIndexed()) {
+            dropAddressIndex();
+            indexAddresses();
+        }
+    }
+
+    /**
+     * Starts indexing the UTXOs this overlay adds by address, in time proportional to its delta.
+     * The UTXOs of an address are those of the base, found through the base's own index if it has
+     * one and by scanning it otherwise, followed by those the overlay added, each checked against
+     * the overlay so that removed or replaced ones are left out.
+     */
+    public void indexAddresses() {
+        super.indexAddresses();
+    }
+
+    void forEachToIndex(BiConsumer<UTXO, Transaction.Output> action) {
+        for (Map.Entry<UTXO, Object> change : delta.changes.entrySet()) {
+            if (change.getValue() != Delta.REMOVED)
+                action.accept(change.getKey(), (Transaction.Output) change.getValue());
+        }
+    }
+
+    ArrayList<UTXO> indexedUTXOs(PublicKey address) {
+        LinkedHashSet<UTXO> utxos = new LinkedHashSet<UTXO>(base.getUTXOs(address));
+        utxos.addAll(super.indexedUTXOs(address));
+        return new ArrayList<UTXO>(utxos);
+    }
+
+    /**
+     * The store behind an overlay. Each changed UTXO maps to its new output, or to REMOVED if it
+     * was removed; null outputs are kept as they are, since a store may map a UTXO to null.
+     */
+    private static final class Delta implements UTXOStore {
+
+        static final Object REMOVED = new Object();
+
+        final UTXOPool base;
+        final HashMap<UTXO, Object> changes;
+        //number of UTXOs in the overlay minus the number in the base.
+        int sizeChange;
+
+        Delta(UTXOPool base, HashMap<UTXO, Object> changes, int sizeChange) {
+            this.base = base;
+            this.changes = changes;
+            this.sizeChange = sizeChange;
+        }
+
+        public Transaction.Output get(UTXO utxo) {
+            Object change = changes.get(utxo);
+            if (change == null && !changes.containsKey(utxo))
+                return base.getTxOutput(utxo);
+            return change == REMOVED ? null : (Transaction.Output) change;
+        }
+
+        public boolean containsKey(UTXO utxo) {
+            Object change = changes.get(utxo);
+            if (change == null && !changes.containsKey(utxo))
+                return base.contains(utxo);
+            return change != REMOVED;
+        }
+
+        public void put(UTXO utxo, Transaction.Output txOut) {
+            if (!containsKey(utxo))
+                sizeChange++;
+            changes.put(utxo, txOut);
+        }
+
+        public void remove(UTXO utxo) {
+            if (!containsKey(utxo))
+                return;
+            sizeChange--;
+            //a UTXO the overlay added itself can simply be forgotten.
+            if (base.contains(utxo))
+                changes.put(utxo, REMOVED);
+            else
+                changes.remove(utxo);
+        }
+
+        public int size() {
+            return base.store().size() + sizeChange;
+        }
+
+        public void forEach(BiConsumer<UTXO, Transaction.Output> action) {
+            base.store().forEach((utxo, txOut) -> {
+                if (!changes.containsKey(utxo))
+                    action.accept(utxo, txOut);
+            });
+            for (Map.Entry<UTXO, Object> change : changes.entrySet()) {
+                if (change.getValue() != REMOVED)
+                    action.accept(change.getKey(), (Transaction.Output) change.getValue());
+            }
+        }
+
+        /** @return an overlay store over the same base with a copy of this delta */
+        public UTXOStore copy() {
+            return new Delta(base, new HashMap<UTXO, Object>(changes), sizeChange);
+        }
+
+        /**
+         * Does nothing: the end of an epoch handled against an overlay doesn't reach the base,
+         * which only changes through {@link OverlayUTXOPool#mergeIntoBase()}.
+         */
+        public void commit() {
+        }
+    }
+}
@@ -0,0 +1,341 @@
+import java.util.function.BiConsumer;
+
+/**
+ * The default UTXOStore, a map from UTXO to transaction output stored as a hash array mapped trie
+ * (HAMT). Copying the map with {@link #copy()} takes constant time: both maps share every node, and
+ * a node is only updated in place by the map that created it. Any other update copies the nodes on
+ * the path to the changed entry, so a copy and its source never see each other's changes.
+ */
+public class PersistentUTXOMap implements UTXOStore {
+
+    /** Returned by {@link Node#find} when the key is absent, since outputs may be null */
+    private static final Object NOT_FOUND = new Object();
+
+    private static final int BITS = 5;
+    private static final int MASK = (1 << BITS) - 1;
+
+    /**
+     * Identifies the nodes a map may update in place. Every map owns a distinct Edit, and it also
+     * reports back whether the last put or remove changed the number of entries.
+     */
+    private static final class Edit {
+        boolean sizeChanged;
+    }
+
+    private Node root;
+    private int size;
+    private Edit edit = new Edit();
+
+    /** Creates a new empty map */
+    public PersistentUTXOMap() {
+    }
+
+    private PersistentUTXOMap(Node root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    /**
+     * @return a map with the same entries as this one, in constant time. Neither map sees later
+     *         updates to the other. This writes to this map too, so it must not run concurrently
+     *         with other operations on it.
+     */
+    public PersistentUTXOMap copy() {
+        //the nodes are shared from now on, so this map can no longer update them in place either.
+        edit = new Edit();
+        return new PersistentUTXOMap(root, size);
+    }
+
+    /** @return the output mapped to {@code key}, or null if there is none */
+    public Transaction.Output get(UTXO key) {
+        Object v = find(key);
+        return v == NOT_FOUND ? null : (Transaction.Output) v;
+    }
+
+    /** @return true if {@code key} is mapped to an output, even a null one */
+    public boolean containsKey(UTXO key) {
+        return find(key) != NOT_FOUND;
+    }
+
+    private Object find(UTXO key) {
+        if (root == null)
+            return NOT_FOUND;
+        return root.find(0, key.hashCode(), key);
+    }
+
+    /** Maps {@code key} to {@code value}, replacing any previous mapping */
+    public void put(UTXO key, Transaction.Output value) {
+        edit.sizeChanged = false;
+        if (root == null)
+            root = new BitmapNode(edit, 0, new Object[0]);
+        root = root.put(edit, 0, key.hashCode(), key, value);
+        if (edit.sizeChanged)
+            size++;
+    }
+
+    /** Removes the mapping for {@code key}, if any */
+    public void remove(UTXO key) {
+        if (root == null)
+            return;
+        edit.sizeChanged = false;
+        root = root.remove(edit, 0, key.hashCode(), key);
+        if (edit.sizeChanged)
+            size--;
+    }
+
+    /** @return the number of entries in the map */
+    public int size() {
+        return size;
+    }
+
+    /** Calls {@code action} on every entry of the map, in no particular order */
+    public void forEach(BiConsumer<UTXO, Transaction.Output> action) {
+        if (root != null)
+            root.forEach(action);
+    }
+
+    private abstract static class Node {
+        /** @return the value mapped to {@code key}, or NOT_FOUND */
+        abstract Object find(int shift, int hash, UTXO key);
+
+        /** @return this node if it was updated in place or did not change, or its replacement */
+        abstract Node put(Edit edit, int shift, int hash, UTXO key, Transaction.Output value);
+
+        /** @return like put, or null if the node is left empty */
+        abstract Node remove(Edit edit, int shift, int hash, UTXO key);
+
+        abstract void forEach(BiConsumer<UTXO, Transaction.Output> action);
+    }
+
+    /**
+     * An inner node with up to 32 slots, one per 5-bit chunk of the hash at its depth. Only the
+     * occupied slots are stored, in bitmap order, as pairs in {@code array}: either a key and its
+     * value, or null and the child node for that slot.
+     */
+    private static final class BitmapNode extends Node {
+        private final Edit edit;
+        private int bitmap;
+        private Object[] array;
+
+        BitmapNode(Edit edit, int bitmap, Object[] array) {
+            this.edit = edit;
+            this.bitmap = bitmap;
+            this.array = array;
+        }
+
+        Object find(int shift, int hash, UTXO key) {
+            int bit = bitpos(hash, shift);
+            if ((bitmap & bit) == 0)
+                return NOT_FOUND;
+            int idx = index(bit);
+            Object k = array[2 * idx];
+            Object v = array[2 * idx + 1];
+            if (k == null)
+                return ((Node) v).find(shift + BITS, hash, key);
+            return key.equals(k) ? v : NOT_FOUND;
+        }
+
+        Node put(Edit edit, int shift, int hash, UTXO key, Transaction.Output value) {
+            int bit = bitpos(hash, shift);
+            int idx = index(bit);
+            if ((bitmap & bit) != 0) {
+                Object k = array[2 * idx];
+                Object v = array[2 * idx + 1];
+                if (k == null) {
+                    Node n = ((Node) v).put(edit, shift + BITS, hash, key, value);
+                    return n == v ? this : editAndSet(edit, 2 * idx + 1, n);
+                }
+                if (key.equals(k))
+                    return v == value ? this : editAndSet(edit, 2 * idx + 1, value);
+                edit.sizeChanged = true;
+                Node n = createNode(edit, shift + BITS, (UTXO) k, (Transaction.Output) v, hash, key,
+                    value);
+                BitmapNode editable = ensureEditable(edit);
+                editable.array[2 * idx] = null;
+                editable.array[2 * idx + 1] = n;
+                return editable;
+            }
+
+            edit.sizeChanged = true;
+            int n = Integer.bitCount(bitmap);
+            Object[] newArray = new Object[2 * (n + 1)];
+            System.arraycopy(array, 0, newArray, 0, 2 * idx);
+            newArray[2 * idx] = key;
+            newArray[2 * idx + 1] = value;
+            System.arraycopy(array, 2 * idx, newArray, 2 * (idx + 1), 2 * (n - idx));
+            if (this.edit == edit) {
+                bitmap |= bit;
+                array = newArray;
+                return this;
+            }
+            return new BitmapNode(edit, bitmap | bit, newArray);
+        }
+
+        Node remove(Edit edit, int shift, int hash, UTXO key) {
+            int bit = bitpos(hash, shift);
+            if ((bitmap & bit) == 0)
+                return this;
+            int idx = index(bit);
+            Object k = array[2 * idx];
+            Object v = array[2 * idx + 1];
+            if (k == null) {
+                Node n = ((Node) v).remove(edit, shift + BITS, hash, key);
+                if (n == v)
+                    return this;
+                if (n == null)
+                    return removePair(edit, bit, idx);
+                //pull a child that is down to a single entry back up into this node, so removals
+                //don't leave long chains of single-entry nodes behind.
+                if (n instanceof BitmapNode && Integer.bitCount(((BitmapNode) n).bitmap) == 1
+                        && ((BitmapNode) n).array[0] != null) {
+                    BitmapNode editable = ensureEditable(edit);
+                    editable.array[2 * idx] = ((BitmapNode) n).array[0];
+                    editable.array[2 * idx + 1] = ((BitmapNode) n).array[1];
+                    return editable;
+                }
+                return editAndSet(edit, 2 * idx + 1, n);
+            }
+            if (!key.equals(k))
+                return this;
+            edit.sizeChanged = true;
+            return removePair(edit, bit, idx);
+        }
+
+        void forEach(BiConsumer<UTXO, Transaction.Output> action) {
+            for (int i = 0; i < array.length; i += 2) {
+                if (array[i] == null)
+                    ((Node) array[i + 1]).forEach(action);
+                else
+                    action.accept((UTXO) array[i], (Transaction.Output) array[i + 1]);
+            }
+        }
+
+        private Node removePair(Edit edit, int bit, int idx) {
+            if (bitmap == bit)
+                return null;
+            int n = Integer.bitCount(bitmap);
+            Object[] newArray = new Object[2 * (n - 1)];
+            System.arraycopy(array, 0, newArray, 0, 2 * idx);
+            System.arraycopy(array, 2 * (idx + 1), newArray, 2 * idx, 2 * (n - idx - 1));
+            if (this.edit == edit) {
+                bitmap ^= bit;
+                array = newArray;
+                return this;
+            }
+            return new BitmapNode(edit, bitmap ^ bit, newArray);
+        }
+
+        private BitmapNode editAndSet(Edit edit, int i, Object value) {
+            BitmapNode editable = ensureEditable(edit);
+            editable.array[i] = value;
+            return editable;
+        }
+
+        private BitmapNode ensureEditable(Edit edit) {
+            if (this.edit == edit)
+                return this;
+            return new BitmapNode(edit, bitmap, array.clone());
+        }
+
+        private int index(int bit) {
+            return Integer.bitCount(bitmap & (bit - 1));
+        }
+    }
+
+    /** A leaf holding the entries whose keys have the same full 32-bit hash */
+    private static final class CollisionNode extends Node {
+        private final Edit edit;
+        private final int hash;
+        private Object[] array;
+
+        CollisionNode(Edit edit, int hash, Object[] array) {
+            this.edit = edit;
+            this.hash = hash;
+            this.array = array;
+        }
+
+        Object find(int shift, int hash, UTXO key) {
+            int i = indexOf(key);
+            return i < 0 ? NOT_FOUND : array[i + 1];
+        }
+
+        Node put(Edit edit, int shift, int hash, UTXO key, Transaction.Output value) {
+            if (hash != this.hash) {
+                //nest this node in a bitmap node so the new key can take a different slot.
+                Node n = new BitmapNode(edit, bitpos(this.hash, shift), new Object[] { null, this });
+                return n.put(edit, shift, hash, key, value);
+            }
+            int i = indexOf(key);
+            if (i >= 0) {
+                if (array[i + 1] == value)
+                    return this;
+                CollisionNode editable = this.edit == edit ? this
+                    : new CollisionNode(edit, hash, array.clone());
+                editable.array[i + 1] = value;
+                return editable;
+            }
+            edit.sizeChanged = true;
+            Object[] newArray = new Object[array.length + 2];
+            System.arraycopy(array, 0, newArray, 0, array.length);
+            newArray[array.length] = key;
+            newArray[array.length + 1] = value;
+            if (this.edit == edit) {
+                array = newArray;
+                return this;
+            }
+            return new CollisionNode(edit, hash, newArray);
+        }
+
+        Node remove(Edit edit, int shift, int hash, UTXO key) {
+            int i = indexOf(key);
+            if (i < 0)
+                return this;
+            edit.sizeChanged = true;
+            if (array.length == 2)
+                return null;
+            Object[] newArray = new Object[array.length - 2];
+            System.arraycopy(array, 0, newArray, 0, i);
+            System.arraycopy(array, i + 2, newArray, i, array.length - i - 2);
+            if (this.edit == edit) {
+                array = newArray;
+                return this;
+            }
+            return new CollisionNode(edit, hash, newArray);
+        }
+
+        void forEach(BiConsumer<UTXO, Transaction.Output> action) {
+            for (int i = 0; i < array.length; i += 2)
+                action.accept((UTXO) array[i], (Transaction.Output) array[i + 1]);
+        }
+
+        private int indexOf(UTXO key) {
+            for (int i = 0; i < array.length; i += 2) {
+                if (key.equals(array[i]))
+                    return i;
+            }
+            return -1;
+        }
+    }
+
+    /** @return a node at depth {@code shift} holding two entries with different keys */
+    private static Node createNode(Edit edit, int shift, UTXO key1, Transaction.Output value1,
+            int hash2, UTXO key2, Transaction.Output value2) {
+        int hash1 = key1.hashCode();
+        if (hash1 == hash2)
+            return new CollisionNode(edit, hash1, new Object[] { key1, value1, key2, value2 });
+        int bit1 = bitpos(hash1, shift);
+        int bit2 = bitpos(hash2, shift);
+        if (bit1 == bit2) {
+            Node n = createNode(edit, shift + BITS, key1, value1, hash2, key2, value2);
+            return new BitmapNode(edit, bit1, new Object[] { null, n });
+        }
+        Object[] array = Integer.compareUnsigned(bit1, bit2) < 0
+            ? new Object[] { key1, value1, key2, value2 }
+            : new Object[] { key2, value2, key1, value1 };
+        return new BitmapNode(edit, bit1 | bit2, array);
+    }
+
+    private static int bitpos(int hash, int shift) {
+        return 1 << ((hash >>> shift) & MASK);
+    }
+}
@@ -0,0 +1,155 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.MessageDigest;
+import java.security.PublicKey;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded set of signature checks that succeeded, so that a transaction validated several times,
+ * e.g. when it reaches the node and again when its epoch is handled, pays for the RSA operation
+ * only once. A check is identified by the SHA-256 digest of the signed message, the encoded key and
+ * the signature; hashing them costs a small fraction of verifying the signature.
+ *
+ * <p>The cache is split into independently locked stripes, each a segmented LRU: new entries go to
+ * a probationary segment and are only promoted to the protected segment, which holds four fifths of
+ * the capacity, when they are looked up again. A burst of transactions that are checked once, such
+ * as a flood of invalid spam, can therefore only evict other probationary entries, never the ones
+ * that keep being hit.
+ */
+public class SignatureCache {
+
+    private static final int STRIPES = 16;
+
+    private static final VarHandle LONG_VIEW =
+        MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /** Creates a cache holding up to about {@code capacity} successful checks */
+    public SignatureCache(int capacity) {
+        if (capacity < STRIPES)
+            throw new IllegalArgumentException("capacity must be at least " + STRIPES + ": "
+                + capacity);
+        for (int i = 0; i < STRIPES; i++)
+            stripes[i] = new Stripe(capacity / STRIPES);
+    }
+
+    /** Identifies one signature check by the digest of everything it depends on */
+    static final class Id {
+        private final long d0, d1, d2, d3;
+
+        private Id(byte[] digest) {
+            d0 = (long) LONG_VIEW.get(digest, 0);
+            d1 = (long) LONG_VIEW.get(digest, 8);
+            d2 = (long) LONG_VIEW.get(digest, 16);
+            d3 = (long) LONG_VIEW.get(digest, 24);
+        }
+
+        public boolean equals(Object other) {
+            if (!(other instanceof Id))
+                return false;
+            Id id = (Id) other;
+            return d0 == id.d0 && d1 == id.d1 && d2 == id.d2 && d3 == id.d3;
+        }
+
+        public int hashCode() {
+            return (int) d0;
+        }
+    }
+
+    /**
+     * @return the id of checking {@code signature} over the remaining bytes of {@code prefix} and
+     *         {@code suffix} under {@code pubKey}. The buffers' positions are not changed.
+     */
+    static Id id(PublicKey pubKey, ByteBuffer prefix, ByteBuffer suffix, byte[] signature) {
+        MessageDigest md = Transaction.sha256();
+        //each part is preceded by its length, so different splits of the same bytes don't collide.
+        byte[] encodedKey = pubKey.getEncoded();
+        ByteBuffer lengths = ByteBuffer.allocate(12)
+            .putInt(prefix.remaining() + suffix.remaining())
+            .putInt(encodedKey.length)
+            .putInt(signature.length);
+        md.update(lengths.array());
+        md.update(prefix.duplicate());
+        md.update(suffix.duplicate());
+        md.update(encodedKey);
+        md.update(signature);
+        return new Id(md.digest());
+    }
+
+    /** @return true if the check identified by {@code id} is known to have succeeded */
+    boolean contains(Id id) {
+        boolean hit = stripe(id).contains(id);
+        (hit ? hits : misses).increment();
+        return hit;
+    }
+
+    /** Records that the check identified by {@code id} succeeded */
+    void add(Id id) {
+        stripe(id).add(id);
+    }
+
+    /** @return the number of lookups that found a successful check */
+    public long hits() {
+        return hits.sum();
+    }
+
+    /** @return the number of lookups that had to verify the signature */
+    public long misses() {
+        return misses.sum();
+    }
+
+    private Stripe stripe(Id id) {
+        return stripes[(int) (id.d1 >>> 60)];
+    }
+
+    /** One segmented LRU; its maps are access-ordered, so iteration starts at the LRU entry */
+    private static final class Stripe {
+        private final LinkedHashMap<Id, Boolean> probation;
+        private final LinkedHashMap<Id, Boolean> protectedEntries;
+        private final int protectedCapacity;
+        private final int probationCapacity;
+
+        Stripe(int capacity) {
+            protectedCapacity = capacity * 4 / 5;
+            probationCapacity = Math.max(1, capacity - protectedCapacity);
+            probation = new LinkedHashMap<Id, Boolean>(16, 0.75f, true);
+            protectedEntries = new LinkedHashMap<Id, Boolean>(16, 0.75f, true);
+        }
+
+        synchronized boolean contains(Id id) {
+            if (protectedEntries.get(id) != null)
+                return true;
+            if (probation.remove(id) == null)
+                return false;
+            //a second hit promotes the entry, demoting the protected LRU entry if there's no room.
+            if (protectedEntries.size() >= protectedCapacity) {
+                Map.Entry<Id, Boolean> eldest = protectedEntries.entrySet().iterator().next();
+                protectedEntries.remove(eldest.getKey());
+                addToProbation(eldest.getKey());
+            }
+            if (protectedCapacity > 0)
+                protectedEntries.put(id, Boolean.TRUE);
+            else
+                addToProbation(id);
+            return true;
+        }
+
+        synchronized void add(Id id) {
+            if (!protectedEntries.containsKey(id))
+                addToProbation(id);
+        }
+
+        private void addToProbation(Id id) {
+            probation.put(id, Boolean.TRUE);
+            if (probation.size() > probationCapacity)
+                probation.remove(probation.keySet().iterator().next());
+        }
+    }
+}
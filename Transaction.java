@@ -1,13 +1,17 @@
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
 
-public class Transaction {
+public class Transaction implements TransactionData {
 
-    public class Input {
+    /** Number of base units in one coin; output values are whole numbers of base units */
+    public static final long UNITS_PER_COIN = 100_000_000L;
+
+    public static class Input {
         /** hash of the Transaction whose output is being used */
         public byte[] prevTxHash;
         /** used output's index in the previous transaction */
@@ -31,22 +35,66 @@ public class Transaction {
         }
     }
 
-    public class Output {
-        /** value in bitcoins of the output */
-        public double value;
+    public static class Output {
+        /** value of the output in base units, see UNITS_PER_COIN */
+        public long value;
         /** the address or public key of the recipient */
         public PublicKey address;
 
-        public Output(double v, PublicKey addr) {
+        /** {@code address.getEncoded()}, cached for as long as {@code address} isn't replaced */
+        private EncodedKey encodedAddress;
+
+        public Output(long v, PublicKey addr) {
             value = v;
             address = addr;
         }
+
+        /** @return the encoded form of {@code address}; the returned array must not be modified */
+        byte[] getEncodedAddress() {
+            EncodedKey e = encodedAddress;
+            if (e == null || e.key != address) {
+                e = new EncodedKey(address);
+                encodedAddress = e;
+            }
+            return e.encoded;
+        }
     }
 
+    /**
+     * A key together with its encoding. Both fields are final so that an Output can be serialized
+     * from several threads at once without either of them seeing a half-updated cache.
+     */
+    private static final class EncodedKey {
+        final PublicKey key;
+        final byte[] encoded;
+
+        EncodedKey(PublicKey key) {
+            this.key = key;
+            this.encoded = key.getEncoded();
+        }
+    }
+
+    /** per-thread SHA-256 digest, reset after each use */
+    private static final ThreadLocal<MessageDigest> DIGESTS = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    });
+
+    /** per-thread buffer handed out by the get*Buffer methods */
+    private static final ThreadLocal<ByteBuffer> SCRATCH =
+        ThreadLocal.withInitial(() -> ByteBuffer.allocate(1024));
+
     /** hash of the transaction, its unique id */
-    private byte[] hash;
+    private TxId id;
+    /** what {@code id} was computed from, or null if the transaction changed since */
+    private IdSource idSource;
     private ArrayList<Input> inputs;
     private ArrayList<Output> outputs;
+    /** outputs section of the signed data, see getOutputsData */
+    private OutputsSection outputsSection;
 
     public Transaction() {
         inputs = new ArrayList<Input>();
@@ -54,23 +102,35 @@ public class Transaction {
     }
 
     public Transaction(Transaction tx) {
-        hash = tx.hash.clone();
-        inputs = new ArrayList<Input>(tx.inputs);
-        outputs = new ArrayList<Output>(tx.outputs);
+        //ids are immutable, so the copy can share it. The lists come from the getters so that a
+        //copy of an ImmutableTransaction gets its own inputs and outputs.
+        id = tx.id;
+        inputs = new ArrayList<Input>(tx.getInputs());
+        outputs = new ArrayList<Output>(tx.getOutputs());
+    }
+
+    /** Creates a transaction that takes ownership of {@code inputs} and {@code outputs} */
+    Transaction(ArrayList<Input> inputs, ArrayList<Output> outputs) {
+        this.inputs = inputs;
+        this.outputs = outputs;
     }
 
     public void addInput(byte[] prevTxHash, int outputIndex) {
         Input in = new Input(prevTxHash, outputIndex);
         inputs.add(in);
+        idSource = null;
     }
 
-    public void addOutput(double value, PublicKey address) {
+    public void addOutput(long value, PublicKey address) {
         Output op = new Output(value, address);
         outputs.add(op);
+        outputsSection = null;
+        idSource = null;
     }
 
     public void removeInput(int index) {
         inputs.remove(index);
+        idSource = null;
     }
 
     public void removeInput(UTXO ut) {
@@ -79,101 +139,339 @@ public class Transaction {
             UTXO u = new UTXO(in.prevTxHash, in.outputIndex);
             if (u.equals(ut)) {
                 inputs.remove(i);
+                idSource = null;
                 return;
             }
         }
     }
 
+    /**
+     * @return the data signed by input {@code index}: its {@code prevTxHash} and {@code outputIndex}
+     *         followed by the value and encoded address of every output
+     */
     public byte[] getRawDataToSign(int index) {
         // ith input and all outputs
-        ArrayList<Byte> sigData = new ArrayList<Byte>();
         if (index > inputs.size())
             return null;
-        Input in = inputs.get(index);
-        byte[] prevTxHash = in.prevTxHash;
-        ByteBuffer b = ByteBuffer.allocate(Integer.SIZE / 8);
-        b.putInt(in.outputIndex);
-        byte[] outputIndex = b.array();
-        if (prevTxHash != null)
-            for (int i = 0; i < prevTxHash.length; i++)
-                sigData.add(prevTxHash[i]);
-        for (int i = 0; i < outputIndex.length; i++)
-            sigData.add(outputIndex[i]);
-        for (Output op : outputs) {
-            ByteBuffer bo = ByteBuffer.allocate(Double.SIZE / 8);
-            bo.putDouble(op.value);
-            byte[] value = bo.array();
-            byte[] addressBytes = op.address.getEncoded();
-            for (int i = 0; i < value.length; i++)
-                sigData.add(value[i]);
-
-            for (int i = 0; i < addressBytes.length; i++)
-                sigData.add(addressBytes[i]);
-        }
-        byte[] sigD = new byte[sigData.size()];
-        int i = 0;
-        for (Byte sb : sigData)
-            sigD[i++] = sb;
+        byte[] sigD = new byte[getRawDataToSignSize(index)];
+        writeRawDataToSign(index, ByteBuffer.wrap(sigD));
         return sigD;
     }
 
+    /**
+     * @return the data signed by input {@code index} in a thread-local buffer positioned at its start.
+     *         The buffer is reused by the next call to any of the get*Buffer methods on the same
+     *         thread.
+     */
+    public ByteBuffer getRawDataToSignBuffer(int index) {
+        ByteBuffer b = scratchBuffer(getRawDataToSignSize(index));
+        writeRawDataToSign(index, b);
+        b.flip();
+        return b;
+    }
+
+    /** @return the number of bytes {@link #getRawDataToSign(int)} returns for input {@code index} */
+    public int getRawDataToSignSize(int index) {
+        Input in = inputs.get(index);
+        int size = Integer.BYTES + getOutputsSize();
+        if (in.prevTxHash != null)
+            size += in.prevTxHash.length;
+        return size;
+    }
+
+    /**
+     * Writes the data signed by input {@code index} to {@code dst}, which must have at least
+     * {@link #getRawDataToSignSize(int)} bytes remaining
+     */
+    public void writeRawDataToSign(int index, ByteBuffer dst) {
+        Input in = inputs.get(index);
+        ByteOrder order = dst.order();
+        dst.order(ByteOrder.BIG_ENDIAN);
+        if (in.prevTxHash != null)
+            dst.put(in.prevTxHash);
+        dst.putInt(in.outputIndex);
+        writeOutputs(dst);
+        dst.order(order);
+    }
+
     public void addSignature(byte[] signature, int index) {
         inputs.get(index).addSignature(signature);
+        idSource = null;
     }
 
     public byte[] getRawTx() {
-        ArrayList<Byte> rawTx = new ArrayList<Byte>();
+        byte[] tx = new byte[getRawTxSize()];
+        writeRawTx(ByteBuffer.wrap(tx));
+        return tx;
+    }
+
+    /**
+     * @return the raw transaction in a thread-local buffer positioned at its start. The buffer is
+     *         reused by the next call to any of the get*Buffer methods on the same thread.
+     */
+    public ByteBuffer getRawTxBuffer() {
+        ByteBuffer b = scratchBuffer(getRawTxSize());
+        writeRawTx(b);
+        b.flip();
+        return b;
+    }
+
+    /** @return the number of bytes {@link #getRawTx()} returns */
+    public int getRawTxSize() {
+        int size = inputs.size() * Integer.BYTES + getOutputsSize();
+        for (Input in : inputs) {
+            if (in.prevTxHash != null)
+                size += in.prevTxHash.length;
+            if (in.signature != null)
+                size += in.signature.length;
+        }
+        return size;
+    }
+
+    /**
+     * Writes the raw transaction to {@code dst}, which must have at least {@link #getRawTxSize()}
+     * bytes remaining
+     */
+    public void writeRawTx(ByteBuffer dst) {
+        ByteOrder order = dst.order();
+        dst.order(ByteOrder.BIG_ENDIAN);
         for (Input in : inputs) {
-            byte[] prevTxHash = in.prevTxHash;
-            ByteBuffer b = ByteBuffer.allocate(Integer.SIZE / 8);
-            b.putInt(in.outputIndex);
-            byte[] outputIndex = b.array();
-            byte[] signature = in.signature;
-            if (prevTxHash != null)
-                for (int i = 0; i < prevTxHash.length; i++)
-                    rawTx.add(prevTxHash[i]);
-            for (int i = 0; i < outputIndex.length; i++)
-                rawTx.add(outputIndex[i]);
-            if (signature != null)
-                for (int i = 0; i < signature.length; i++)
-                    rawTx.add(signature[i]);
-        }
-        for (Output op : outputs) {
-            ByteBuffer b = ByteBuffer.allocate(Double.SIZE / 8);
-            b.putDouble(op.value);
-            byte[] value = b.array();
-            byte[] addressBytes = op.address.getEncoded();
-            for (int i = 0; i < value.length; i++) {
-                rawTx.add(value[i]);
+            if (in.prevTxHash != null)
+                dst.put(in.prevTxHash);
+            dst.putInt(in.outputIndex);
+            if (in.signature != null)
+                dst.put(in.signature);
+        }
+        writeOutputs(dst);
+        dst.order(order);
+    }
+
+    /**
+     * @return the input-specific start of the data signed by input {@code index}, its
+     *         {@code prevTxHash} and {@code outputIndex}, in a thread-local buffer. The rest of the
+     *         signed data is {@link #getOutputsDataBuffer()}. The buffer is reused by the next call
+     *         to any of the get*Buffer methods on the same thread.
+     */
+    public ByteBuffer getSigningPrefixBuffer(int index) {
+        Input in = inputs.get(index);
+        int size = Integer.BYTES;
+        if (in.prevTxHash != null)
+            size += in.prevTxHash.length;
+        ByteBuffer b = scratchBuffer(size);
+        if (in.prevTxHash != null)
+            b.put(in.prevTxHash);
+        b.putInt(in.outputIndex);
+        b.flip();
+        return b;
+    }
+
+    /**
+     * @return the serialized outputs, the part of the signed data that every input shares. It is
+     *         serialized once and reused until the outputs change, and the buffer wraps that array
+     *         so that Signature and MessageDigest read it in place: it must not be modified.
+     */
+    public ByteBuffer getOutputsDataBuffer() {
+        return outputsDataBuffer();
+    }
+
+    /**
+     * @return the buffer {@link #getOutputsDataBuffer()} returns, never made read-only, even by
+     *         subclasses whose {@link #getOutputsDataBuffer()} does so. It must not be modified.
+     */
+    final ByteBuffer outputsDataBuffer() {
+        return ByteBuffer.wrap(getOutputsData());
+    }
+
+    private int getOutputsSize() {
+        return getOutputsData().length;
+    }
+
+    private void writeOutputs(ByteBuffer dst) {
+        dst.put(getOutputsData());
+    }
+
+    /**
+     * @return the cached outputs section, serializing it again if an output changed since. The
+     *         returned array must not be modified.
+     */
+    byte[] getOutputsData() {
+        OutputsSection section = outputsSection;
+        if (section == null || !section.matches(outputs)) {
+            section = new OutputsSection(outputs);
+            outputsSection = section;
+        }
+        return section.data;
+    }
+
+    /**
+     * Caches {@code data} as the serialized form of the current outputs, for callers that already
+     * have it, such as a decoder. The array must not be modified afterwards.
+     */
+    void setOutputsData(byte[] data) {
+        outputsSection = new OutputsSection(outputs, data);
+    }
+
+    /**
+     * The serialized outputs together with what they were serialized from. Output's fields are
+     * public, so instead of trusting addOutput to be the only way they change the snapshot is
+     * compared against the outputs before it is reused, which is far cheaper than serializing them.
+     */
+    private static final class OutputsSection {
+        final byte[] data;
+        final long[] values;
+        final PublicKey[] addresses;
+
+        OutputsSection(ArrayList<Output> outputs) {
+            values = new long[outputs.size()];
+            addresses = new PublicKey[outputs.size()];
+            int size = outputs.size() * Long.BYTES;
+            for (int i = 0; i < outputs.size(); i++) {
+                Output op = outputs.get(i);
+                values[i] = op.value;
+                addresses[i] = op.address;
+                size += op.getEncodedAddress().length;
             }
-            for (int i = 0; i < addressBytes.length; i++) {
-                rawTx.add(addressBytes[i]);
+            ByteBuffer b = ByteBuffer.allocate(size);
+            for (int i = 0; i < outputs.size(); i++) {
+                b.putLong(values[i]);
+                b.put(outputs.get(i).getEncodedAddress());
             }
+            data = b.array();
+        }
 
+        OutputsSection(ArrayList<Output> outputs, byte[] data) {
+            values = new long[outputs.size()];
+            addresses = new PublicKey[outputs.size()];
+            for (int i = 0; i < outputs.size(); i++) {
+                values[i] = outputs.get(i).value;
+                addresses[i] = outputs.get(i).address;
+            }
+            this.data = data;
+        }
+
+        boolean matches(ArrayList<Output> outputs) {
+            if (outputs.size() != values.length)
+                return false;
+            for (int i = 0; i < values.length; i++) {
+                Output op = outputs.get(i);
+                if (op.value != values[i] || op.address != addresses[i])
+                    return false;
+            }
+            return true;
         }
-        byte[] tx = new byte[rawTx.size()];
-        int i = 0;
-        for (Byte b : rawTx)
-            tx[i++] = b;
-        return tx;
     }
 
+    /**
+     * What an id was computed from. The mutators drop it, which marks the id as dirty, but that
+     * alone would miss fields of Input replaced directly, so, as for the outputs section, the
+     * fields are compared by identity before the id is reused. The arrays aren't copied: changing
+     * their bytes in place goes unnoticed, and it is up to whoever does it to call setHash(null) so
+     * the next finalize() hashes the transaction again. The outputs are covered by their serialized
+     * form, which is rebuilt when they change.
+     */
+    private static final class IdSource {
+        final byte[][] prevTxHashes;
+        final int[] outputIndexes;
+        final byte[][] signatures;
+        final byte[] outputsData;
+
+        IdSource(ArrayList<Input> inputs, byte[] outputsData) {
+            prevTxHashes = new byte[inputs.size()][];
+            outputIndexes = new int[inputs.size()];
+            signatures = new byte[inputs.size()][];
+            for (int i = 0; i < inputs.size(); i++) {
+                Input in = inputs.get(i);
+                prevTxHashes[i] = in.prevTxHash;
+                outputIndexes[i] = in.outputIndex;
+                signatures[i] = in.signature;
+            }
+            this.outputsData = outputsData;
+        }
+
+        boolean matches(ArrayList<Input> inputs, byte[] outputsData) {
+            if (outputsData != this.outputsData || inputs.size() != outputIndexes.length)
+                return false;
+            for (int i = 0; i < outputIndexes.length; i++) {
+                Input in = inputs.get(i);
+                if (in.prevTxHash != prevTxHashes[i] || in.outputIndex != outputIndexes[i]
+                        || in.signature != signatures[i])
+                    return false;
+            }
+            return true;
+        }
+    }
+
+    /** @return a big-endian scratch buffer of this thread with at least {@code size} bytes */
+    private static ByteBuffer scratchBuffer(int size) {
+        ByteBuffer b = SCRATCH.get();
+        if (b.capacity() < size) {
+            b = ByteBuffer.allocate(Math.max(size, 2 * b.capacity()));
+            SCRATCH.set(b);
+        }
+        b.clear();
+        return b;
+    }
+
+    /**
+     * Computes the hash of the transaction, the SHA-256 digest of {@link #getRawTx()}. The hash is
+     * only computed again if the transaction changed since the previous call, through its methods
+     * or by replacing a field of an Input or Output. The bytes of {@code prevTxHash} and
+     * {@code signature} arrays changed in place aren't noticed: call {@code setHash(null)} after
+     * doing so.
+     */
     public void finalize() {
-        try {
-            MessageDigest md = MessageDigest.getInstance("SHA-256");
-            md.update(getRawTx());
-            hash = md.digest();
-        } catch (NoSuchAlgorithmException x) {
-            x.printStackTrace(System.err);
+        byte[] outputsData = getOutputsData();
+        IdSource source = idSource;
+        if (source != null && source.matches(inputs, outputsData))
+            return;
+        computeId(outputsData);
+        idSource = new IdSource(inputs, outputsData);
+    }
+
+    /**
+     * Computes the hash of the transaction without recording what it was computed from, for
+     * transactions that can't change afterwards
+     */
+    final void computeId() {
+        computeId(getOutputsData());
+    }
+
+    private void computeId(byte[] outputsData) {
+        //feed the digest the raw tx piece by piece rather than serializing it first.
+        MessageDigest md = sha256();
+        for (Input in : inputs) {
+            if (in.prevTxHash != null)
+                md.update(in.prevTxHash);
+            md.update((byte) (in.outputIndex >>> 24));
+            md.update((byte) (in.outputIndex >>> 16));
+            md.update((byte) (in.outputIndex >>> 8));
+            md.update((byte) in.outputIndex);
+            if (in.signature != null)
+                md.update(in.signature);
         }
+        md.update(outputsData);
+        id = new TxId(md.digest());
     }
 
+    /** Sets the hash of the transaction to a copy of {@code h}, until the next finalize() */
     public void setHash(byte[] h) {
-        hash = h;
+        id = h == null ? null : TxId.of(h);
+        idSource = null;
     }
 
+    /** @return a copy of the hash of the transaction, or null if it was never computed or set */
     public byte[] getHash() {
-        return hash;
+        return id == null ? null : id.toByteArray();
+    }
+
+    /** @return the hash of the transaction as an id, or null if it was never computed or set */
+    public TxId getId() {
+        return id;
+    }
+
+    /** @return this thread's SHA-256 digest, which is reset after each use */
+    static MessageDigest sha256() {
+        return DIGESTS.get();
     }
 
     public ArrayList<Input> getInputs() {
@@ -198,6 +496,49 @@ public class Transaction {
         return null;
     }
 
+    /** @return the {@code prevTxHash} of input {@code index}, which is not copied */
+    public byte[] getPrevTxHash(int index) {
+        return prevTxHash(index);
+    }
+
+    /**
+     * @return the {@code prevTxHash} of input {@code index}, never copied, even by subclasses whose
+     *         {@link #getPrevTxHash(int)} copies it. It must not be modified.
+     */
+    final byte[] prevTxHash(int index) {
+        return inputs.get(index).prevTxHash;
+    }
+
+    public int getOutputIndex(int index) {
+        return inputs.get(index).outputIndex;
+    }
+
+    /** @return the signature of input {@code index}, which is not copied */
+    public byte[] getSignature(int index) {
+        return signature(index);
+    }
+
+    /**
+     * @return the signature of input {@code index}, never copied, even by subclasses whose
+     *         {@link #getSignature(int)} copies it. It must not be modified.
+     */
+    final byte[] signature(int index) {
+        return inputs.get(index).signature;
+    }
+
+    public long getValue(int index) {
+        return outputs.get(index).value;
+    }
+
+    public PublicKey getAddress(int index) {
+        return outputs.get(index).address;
+    }
+
+    /** @return the encoded address of output {@code index}, which must not be modified */
+    byte[] getEncodedAddress(int index) {
+        return outputs.get(index).getEncodedAddress();
+    }
+
     public int numInputs() {
         return inputs.size();
     }
@@ -0,0 +1,201 @@
+import java.security.PublicKey;
+import java.util.Arrays;
+
+/**
+ * The transactions of an epoch in columns: the outpoints spent by all inputs, and the values and
+ * addresses of all outputs, each in flat arrays, with per-transaction offsets into them. The
+ * outpoints are kept as their packed prevTxHash bytes and output indexes, and only become UTXO
+ * objects when the pool is looked up, through {@link #outpoint(int)}. The
+ * checks that don't depend on the pool, non-negative outputs, output sums and outpoints claimed
+ * twice by the same transaction, are done once when the batch is built by scanning these arrays, so
+ * {@link TxHandler#handleTxs(TransactionBatch)} only looks up the pool and verifies signatures for
+ * transactions that passed them. A transaction failing them still has the inputs before the one
+ * at fault looked up, so that it gets the same verdict as from {@link TxHandler#validateTx}.
+ *
+ * <p>The transactions must not be modified once they are in a batch.
+ */
+public class TransactionBatch {
+
+    /** Inputs of a transaction above which duplicate outpoints are found with a hash set */
+    private static final int LINEAR_DUPLICATE_SCAN = 8;
+
+    private final Transaction[] txs;
+    /** First input of each transaction in the input columns, followed by the number of inputs */
+    final int[] inputStart;
+    /** First output of each transaction in the output columns, followed by the number of outputs */
+    final int[] outputStart;
+    /** prevTxHash of each input, back to back. An input without prevTxHash takes no bytes. */
+    final byte[] prevTxHashes;
+    /** Start of each input's prevTxHash in prevTxHashes, followed by the end of the last one */
+    final int[] prevTxHashStart;
+    /** Output index claimed by each input */
+    final int[] outputIndexes;
+    /** Value of each output */
+    final long[] values;
+    /** Address of each output */
+    final PublicKey[] addresses;
+    /** Sum of each transaction's output values, valid only if its verdict is VALID */
+    final long[] outputSums;
+    /**
+     * Verdict of the checks that don't depend on the pool for each transaction, see TxVerdict. The
+     * outputs are checked first, then the inputs, in the order TxHandler checks them.
+     */
+    final int[] verdicts;
+
+    /** Creates a batch of the non-null transactions of {@code possibleTxs}, in order */
+    public TransactionBatch(Transaction[] possibleTxs) {
+        int txCount = 0;
+        int inputCount = 0;
+        int outputCount = 0;
+        int hashBytes = 0;
+        for (Transaction tx : possibleTxs) {
+            if (tx == null)
+                continue;
+            txCount++;
+            inputCount += tx.numInputs();
+            outputCount += tx.numOutputs();
+            for (int i = 0; i < tx.numInputs(); i++) {
+                byte[] prevTxHash = tx.prevTxHash(i);
+                if (prevTxHash != null)
+                    hashBytes += prevTxHash.length;
+            }
+        }
+
+        txs = new Transaction[txCount];
+        inputStart = new int[txCount + 1];
+        outputStart = new int[txCount + 1];
+        prevTxHashes = new byte[hashBytes];
+        prevTxHashStart = new int[inputCount + 1];
+        outputIndexes = new int[inputCount];
+        values = new long[outputCount];
+        addresses = new PublicKey[outputCount];
+        outputSums = new long[txCount];
+        verdicts = new int[txCount];
+        int t = 0;
+        int in = 0;
+        int out = 0;
+        int hashEnd = 0;
+        for (Transaction tx : possibleTxs) {
+            if (tx == null)
+                continue;
+            txs[t] = tx;
+            inputStart[t] = in;
+            outputStart[t] = out;
+            for (int i = 0; i < tx.numInputs(); i++) {
+                byte[] prevTxHash = tx.prevTxHash(i);
+                prevTxHashStart[in] = hashEnd;
+                //a missing prevTxHash can't be told apart from an empty one in the columns, so it
+                //is reported here.
+                if (prevTxHash == null) {
+                    if (verdicts[t] == TxVerdict.VALID)
+                        verdicts[t] = TxVerdict.of(TxVerdict.Reason.MISSING_UTXO, i);
+                } else {
+                    System.arraycopy(prevTxHash, 0, prevTxHashes, hashEnd, prevTxHash.length);
+                    hashEnd += prevTxHash.length;
+                }
+                outputIndexes[in++] = tx.getOutputIndex(i);
+            }
+            for (int i = 0; i < tx.numOutputs(); i++) {
+                values[out] = tx.getValue(i);
+                addresses[out++] = tx.getAddress(i);
+            }
+            t++;
+        }
+        inputStart[txCount] = in;
+        outputStart[txCount] = out;
+        prevTxHashStart[inputCount] = hashEnd;
+
+        //like TxHandler, the outputs come first. Of a missing prevTxHash and a repeated outpoint,
+        //the one at the earlier input wins, as it would by checking the inputs one by one.
+        for (t = 0; t < txCount; t++) {
+            int missingHash = verdicts[t];
+            verdicts[t] = sumOutputs(t);
+            if (verdicts[t] != TxVerdict.VALID)
+                continue;
+            int duplicate = checkInputs(t);
+            if (missingHash != TxVerdict.VALID && (duplicate == TxVerdict.VALID
+                    || TxVerdict.index(missingHash) <= TxVerdict.index(duplicate)))
+                verdicts[t] = missingHash;
+            else
+                verdicts[t] = duplicate;
+        }
+    }
+
+    /** @return the number of transactions in the batch */
+    public int size() {
+        return txs.length;
+    }
+
+    /** @return transaction {@code index} of the batch */
+    public Transaction getTransaction(int index) {
+        return txs[index];
+    }
+
+    /** @return the outpoint spent by input {@code k} of the batch, which has a prevTxHash */
+    UTXO outpoint(int k) {
+        return new UTXO(prevTxHashes, prevTxHashStart[k], prevTxHashStart[k + 1], outputIndexes[k]);
+    }
+
+    /** @return the verdict of the output values of transaction {@code t}, which are summed */
+    private int sumOutputs(int t) {
+        int start = outputStart[t];
+        long sum = 0;
+        for (int i = start; i < outputStart[t + 1]; i++) {
+            long value = values[i];
+            if (value < 0)
+                return TxVerdict.of(TxVerdict.Reason.NEGATIVE_OUTPUT, i - start);
+            sum += value;
+            //both terms are non-negative, so the sum overflowed exactly if it became negative.
+            if (sum < 0)
+                return TxVerdict.of(TxVerdict.Reason.OUTPUT_OVERFLOW, i - start);
+        }
+        outputSums[t] = sum;
+        return TxVerdict.VALID;
+    }
+
+    /** @return the verdict of inputs of transaction {@code t} claiming the same outpoint twice */
+    private int checkInputs(int t) {
+        int start = inputStart[t];
+        int end = inputStart[t + 1];
+        if (end - start <= LINEAR_DUPLICATE_SCAN) {
+            //the output indexes are compared before the bytes, so these are mostly int compares.
+            for (int i = start + 1; i < end; i++) {
+                for (int j = start; j < i; j++) {
+                    if (sameOutpoint(i, j))
+                        return TxVerdict.of(TxVerdict.Reason.DOUBLE_SPEND, i - start);
+                }
+            }
+            return TxVerdict.VALID;
+        }
+        //an open-addressing table of the inputs seen so far, each stored as its position plus one.
+        int[] seen = new int[Integer.highestOneBit(2 * (end - start) - 1) << 1];
+        int mask = seen.length - 1;
+        for (int i = start; i < end; i++) {
+            int slot = outpointHash(i) & mask;
+            while (seen[slot] != 0) {
+                if (sameOutpoint(i, seen[slot] - 1))
+                    return TxVerdict.of(TxVerdict.Reason.DOUBLE_SPEND, i - start);
+                slot = (slot + 1) & mask;
+            }
+            seen[slot] = i + 1;
+        }
+        return TxVerdict.VALID;
+    }
+
+    /** @return true if inputs {@code i} and {@code j} of the batch claim the same outpoint */
+    private boolean sameOutpoint(int i, int j) {
+        return outputIndexes[i] == outputIndexes[j]
+            && Arrays.equals(prevTxHashes, prevTxHashStart[i], prevTxHashStart[i + 1],
+                prevTxHashes, prevTxHashStart[j], prevTxHashStart[j + 1]);
+    }
+
+    /** @return a hash of the outpoint claimed by input {@code k}, mixing its first 8 bytes */
+    private int outpointHash(int k) {
+        long h = outputIndexes[k] * 0x9E3779B97F4A7C15L;
+        int end = Math.min(prevTxHashStart[k] + Long.BYTES, prevTxHashStart[k + 1]);
+        for (int i = prevTxHashStart[k]; i < end; i++)
+            h = 31 * h + prevTxHashes[i];
+        h *= 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
@@ -0,0 +1,61 @@
+import java.security.PublicKey;
+
+/**
+ * Assembles an {@link ImmutableTransaction}. Inputs and outputs are added first, then each input is
+ * signed over {@link #getRawDataToSign(int)}, and {@link #build()} fixes the result and its hash.
+ * A builder can keep being used after build(); later changes don't affect the transactions it
+ * already built.
+ */
+public class TransactionBuilder {
+
+    private final Transaction draft;
+
+    public TransactionBuilder() {
+        draft = new Transaction();
+    }
+
+    /** Creates a builder that starts with the inputs, outputs and signatures of {@code tx} */
+    public TransactionBuilder(Transaction tx) {
+        //copy the inputs one by one, since signing them here must not change tx.
+        draft = new Transaction();
+        for (int i = 0; i < tx.numInputs(); i++) {
+            draft.addInput(tx.getPrevTxHash(i), tx.getOutputIndex(i));
+            draft.addSignature(tx.getSignature(i), i);
+        }
+        for (int i = 0; i < tx.numOutputs(); i++)
+            draft.addOutput(tx.getValue(i), tx.getAddress(i));
+    }
+
+    public TransactionBuilder addInput(byte[] prevTxHash, int outputIndex) {
+        draft.addInput(prevTxHash, outputIndex);
+        return this;
+    }
+
+    public TransactionBuilder addOutput(long value, PublicKey address) {
+        draft.addOutput(value, address);
+        return this;
+    }
+
+    public TransactionBuilder addSignature(byte[] signature, int index) {
+        draft.addSignature(signature, index);
+        return this;
+    }
+
+    /** @return the data input {@code index} has to sign, see Transaction#getRawDataToSign */
+    public byte[] getRawDataToSign(int index) {
+        return draft.getRawDataToSign(index);
+    }
+
+    public int numInputs() {
+        return draft.numInputs();
+    }
+
+    public int numOutputs() {
+        return draft.numOutputs();
+    }
+
+    /** @return an immutable transaction with the current inputs and outputs, and its hash */
+    public ImmutableTransaction build() {
+        return new ImmutableTransaction(draft);
+    }
+}
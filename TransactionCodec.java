@@ -0,0 +1,340 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ReadableByteChannel;
+import java.security.KeyFactory;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
+
+/**
+ * The binary wire format of a {@link Transaction}. Unlike {@link Transaction#getRawTx()}, every
+ * variable-length field is length-prefixed, so encoded transactions can be concatenated and parsed
+ * back. A frame is, in big-endian order:
+ *
+ * <pre>
+ * version   1 byte, VERSION
+ * length    4 bytes, the number of bytes that follow
+ * inputs    4-byte count, then for each input: 4-byte hash length (-1 for none), hash,
+ *           4-byte output index, 4-byte signature length (-1 for none), signature
+ * outputs   4-byte count, the 4-byte address length of each output, then for each output:
+ *           8-byte value, X.509-encoded address
+ * </pre>
+ *
+ * The outputs after the table of address lengths are laid out exactly like the part of the signed
+ * data that all inputs share, so a decoder hands them to the transaction as they are instead of
+ * serializing them again. The hash is not part of a frame; the decoder computes it, so a peer can't
+ * make a transaction claim another one's id.
+ *
+ * <p>Addresses are decoded as RSA keys, as used by {@link Crypto}. A codec remembers the addresses
+ * it decoded recently, since most of them repeat, and is therefore not thread-safe.
+ */
+public class TransactionCodec {
+
+    /** Version of the format written by {@link #encode}; the only one {@link #decode} accepts */
+    public static final byte VERSION = 1;
+
+    /** Largest frame, not counting the version and length, accepted by default */
+    public static final int DEFAULT_MAX_SIZE = 1 << 20;
+
+    /** Bytes in front of the length-counted part of a frame */
+    static final int HEADER_SIZE = 1 + Integer.BYTES;
+
+    /** Number of decoded addresses each codec keeps, a power of two */
+    private static final int CACHED_ADDRESSES = 1024;
+
+    //smallest encoding of one input and one output, used to reject counts that can't fit.
+    static final int MIN_INPUT_SIZE = 3 * Integer.BYTES;
+    static final int MIN_OUTPUT_SIZE = Integer.BYTES + Long.BYTES;
+
+    private final int maxSize;
+    private final KeyFactory keyFactory;
+
+    //direct-mapped cache of decoded addresses. Hashing a few bytes of an encoding and comparing it
+    //with one candidate is much cheaper than hashing all of it, as a map lookup would.
+    private final ByteBuffer[] cachedEncodings = new ByteBuffer[CACHED_ADDRESSES];
+    private final PublicKey[] cachedAddresses = new PublicKey[CACHED_ADDRESSES];
+
+    public TransactionCodec() {
+        this(DEFAULT_MAX_SIZE);
+    }
+
+    /** Creates a codec that rejects frames of more than {@code maxSize} bytes after the header */
+    public TransactionCodec(int maxSize) {
+        if (maxSize < 2 * Integer.BYTES)
+            throw new IllegalArgumentException("maxSize must be at least " + 2 * Integer.BYTES + ": "
+                + maxSize);
+        this.maxSize = maxSize;
+        try {
+            keyFactory = KeyFactory.getInstance("RSA");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("RSA is not available", e);
+        }
+    }
+
+    /** @return the number of bytes {@link #encode(Transaction)} returns for {@code tx} */
+    public static int encodedSize(Transaction tx) {
+        int size = HEADER_SIZE + 2 * Integer.BYTES + tx.numOutputs() * Integer.BYTES
+            + tx.getOutputsData().length;
+        for (int i = 0; i < tx.numInputs(); i++) {
+            size += MIN_INPUT_SIZE;
+            byte[] prevTxHash = tx.prevTxHash(i);
+            if (prevTxHash != null)
+                size += prevTxHash.length;
+            byte[] signature = tx.signature(i);
+            if (signature != null)
+                size += signature.length;
+        }
+        return size;
+    }
+
+    /** @return the frame of {@code tx}, whose outputs must all have an address */
+    public static byte[] encode(Transaction tx) {
+        byte[] frame = new byte[encodedSize(tx)];
+        encode(tx, ByteBuffer.wrap(frame));
+        return frame;
+    }
+
+    /**
+     * Writes the frame of {@code tx}, whose outputs must all have an address, to {@code dst}
+     *
+     * @throws BufferOverflowException if {@code dst} has less than {@link #encodedSize} bytes
+     *         remaining, in which case nothing is written
+     */
+    public static void encode(Transaction tx, ByteBuffer dst) {
+        byte[] outputsData = tx.getOutputsData();
+        int size = encodedSize(tx);
+        if (dst.remaining() < size)
+            throw new BufferOverflowException();
+        ByteOrder order = dst.order();
+        dst.order(ByteOrder.BIG_ENDIAN);
+        dst.put(VERSION);
+        dst.putInt(size - HEADER_SIZE);
+        dst.putInt(tx.numInputs());
+        for (int i = 0; i < tx.numInputs(); i++) {
+            putBytes(dst, tx.prevTxHash(i));
+            dst.putInt(tx.getOutputIndex(i));
+            putBytes(dst, tx.signature(i));
+        }
+        dst.putInt(tx.numOutputs());
+        for (int i = 0; i < tx.numOutputs(); i++)
+            dst.putInt(tx.getEncodedAddress(i).length);
+        dst.put(outputsData);
+        dst.order(order);
+    }
+
+    /**
+     * Decodes the frame starting at the position of {@code src} and advances the position past it.
+     * Hashes and signatures are copied straight into the transaction and outputs are not serialized
+     * again, so the only other work is decoding addresses that aren't cached and hashing the result.
+     *
+     * @throws IOException if the frame is truncated, malformed or larger than this codec allows, in
+     *         which case the position of {@code src} is unchanged
+     */
+    public Transaction decode(ByteBuffer src) throws IOException {
+        ByteBuffer b = src.duplicate().order(ByteOrder.BIG_ENDIAN);
+        if (b.remaining() < HEADER_SIZE)
+            throw new EOFException("truncated transaction");
+        int length = frameLength(b, maxSize);
+        if (b.remaining() < HEADER_SIZE + length)
+            throw new EOFException("truncated transaction");
+        b.position(b.position() + HEADER_SIZE);
+        int end = b.position() + length;
+        b.limit(end);
+        Transaction tx;
+        try {
+            tx = decodeBody(b);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("transaction is longer than its frame", e);
+        }
+        src.position(end);
+        return tx;
+    }
+
+    /**
+     * @return a reader of the frames sent over {@code channel}, which should be in blocking mode.
+     *         The reader decodes with this codec.
+     */
+    public Reader reader(ReadableByteChannel channel) {
+        return new Reader(channel);
+    }
+
+    /** Reads consecutive frames from a channel, buffering them so frames are decoded in place */
+    public final class Reader {
+        private final ReadableByteChannel channel;
+        /** Bytes read but not yet decoded, between its position and limit */
+        private ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+
+        private Reader(ReadableByteChannel channel) {
+            this.channel = channel;
+            buffer.flip();
+        }
+
+        /**
+         * @return the next transaction, or null if the channel ended right after the previous one
+         * @throws IOException if the channel fails or the next frame can't be decoded
+         */
+        public Transaction next() throws IOException {
+            if (!fill(HEADER_SIZE)) {
+                if (buffer.hasRemaining())
+                    throw new EOFException("truncated transaction");
+                return null;
+            }
+            if (!fill(HEADER_SIZE + frameLength(buffer, maxSize)))
+                throw new EOFException("truncated transaction");
+            return decode(buffer);
+        }
+
+        /** @return false if the channel ended before {@code size} bytes were buffered */
+        private boolean fill(int size) throws IOException {
+            while (buffer.remaining() < size) {
+                if (buffer.capacity() < size) {
+                    ByteBuffer bigger = ByteBuffer.allocate(
+                        Math.max(size, Math.min(2 * buffer.capacity(), HEADER_SIZE + maxSize)));
+                    bigger.put(buffer);
+                    buffer = bigger;
+                } else {
+                    buffer.compact();
+                }
+                int read = channel.read(buffer);
+                buffer.flip();
+                if (read < 0)
+                    return false;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * @return the length of the frame whose header is at the position of {@code b}
+     * @throws IOException if the frame has another version or is longer than {@code maxSize}
+     */
+    static int frameLength(ByteBuffer b, int maxSize) throws IOException {
+        byte version = b.get(b.position());
+        if (version != VERSION)
+            throw new IOException("unsupported transaction version: " + version);
+        int length = b.getInt(b.position() + 1);
+        if (length < 0 || length > maxSize)
+            throw new IOException("transaction of " + length + " bytes exceeds the limit of "
+                + maxSize);
+        return length;
+    }
+
+    private Transaction decodeBody(ByteBuffer b) throws IOException {
+        Transaction tx = new Transaction();
+        int inputCount = count(b, MIN_INPUT_SIZE);
+        for (int i = 0; i < inputCount; i++) {
+            byte[] prevTxHash = getBytes(b);
+            tx.addInput(null, b.getInt());
+            //the arrays are new, so the input can own them instead of copying them again.
+            Transaction.Input in = tx.getInput(i);
+            in.prevTxHash = prevTxHash;
+            in.signature = getBytes(b);
+        }
+
+        int outputCount = count(b, MIN_OUTPUT_SIZE);
+        int[] addressLengths = new int[outputCount];
+        for (int i = 0; i < outputCount; i++) {
+            addressLengths[i] = b.getInt();
+            if (addressLengths[i] < 0)
+                throw new IOException("negative address length: " + addressLengths[i]);
+        }
+        int outputsStart = b.position();
+        for (int i = 0; i < outputCount; i++) {
+            long value = b.getLong();
+            tx.addOutput(value, getAddress(b, addressLengths[i]));
+        }
+        byte[] outputsData = new byte[b.position() - outputsStart];
+        b.get(outputsStart, outputsData);
+        tx.setOutputsData(outputsData);
+
+        if (b.hasRemaining())
+            throw new IOException(b.remaining() + " unexpected bytes at the end of a transaction");
+        tx.finalize();
+        return tx;
+    }
+
+    /** @return a count of items of at least {@code minSize} bytes that fits in what remains of b */
+    static int count(ByteBuffer b, int minSize) throws IOException {
+        int count = b.getInt();
+        if (count < 0 || count > b.remaining() / minSize)
+            throw new IOException("count of " + count + " doesn't fit in the transaction");
+        return count;
+    }
+
+    /** @return the length of the field at the position of b, which fits in it, or -1 for none */
+    static int fieldLength(ByteBuffer b) throws IOException {
+        int length = b.getInt();
+        if (length < -1 || length > b.remaining())
+            throw new IOException("field of " + length + " bytes doesn't fit in the transaction");
+        return length;
+    }
+
+    private static byte[] getBytes(ByteBuffer b) throws IOException {
+        int length = fieldLength(b);
+        if (length == -1)
+            return null;
+        byte[] bytes = new byte[length];
+        b.get(bytes);
+        return bytes;
+    }
+
+    private static void putBytes(ByteBuffer dst, byte[] bytes) {
+        if (bytes == null) {
+            dst.putInt(-1);
+        } else {
+            dst.putInt(bytes.length);
+            dst.put(bytes);
+        }
+    }
+
+    /** @return the address of {@code length} bytes at the position of b, which is advanced past it */
+    private PublicKey getAddress(ByteBuffer b, int length) throws IOException {
+        if (length > b.remaining())
+            throw new BufferUnderflowException();
+        int slot = addressHash(b, length) & (CACHED_ADDRESSES - 1);
+        ByteBuffer cached = cachedEncodings[slot];
+        PublicKey address;
+        if (cached != null && cached.equals(b.slice(b.position(), length))) {
+            address = cachedAddresses[slot];
+        } else {
+            //the cache keeps its own copy, never a view of the caller's buffer.
+            byte[] encoded = new byte[length];
+            b.get(b.position(), encoded);
+            try {
+                address = keyFactory.generatePublic(new X509EncodedKeySpec(encoded));
+            } catch (InvalidKeySpecException e) {
+                throw new IOException("invalid address", e);
+            }
+            //the wire bytes become the signed outputs section and so part of the id, while the
+            //signatures are checked against getEncoded(). An encoding the key factory tolerates but
+            //doesn't reproduce, such as one with trailing bytes, would change the id without
+            //breaking a signature.
+            if (!Arrays.equals(address.getEncoded(), encoded))
+                throw new IOException("address is not in its canonical encoding");
+            cachedEncodings[slot] = ByteBuffer.wrap(encoded);
+            cachedAddresses[slot] = address;
+        }
+        b.position(b.position() + length);
+        return address;
+    }
+
+    /** @return a hash of the {@code length} bytes at the position of b */
+    private static int addressHash(ByteBuffer b, int length) {
+        //the middle of an encoded RSA key is part of its modulus, so eight bytes of it spread well.
+        long h = length;
+        if (length >= Long.BYTES) {
+            h ^= b.getLong(b.position() + (length - Long.BYTES) / 2);
+        } else {
+            for (int i = 0; i < length; i++)
+                h = 31 * h + b.get(b.position() + i);
+        }
+        h *= 0x9E3779B97F4A7C15L;
+        return (int) (h >>> 32);
+    }
+}
@@ -0,0 +1,30 @@
+import java.nio.ByteBuffer;
+
+/**
+ * Read access to the parts of a transaction that {@link TxHandler#isValidTx} checks, implemented
+ * both by {@link Transaction} and by {@link TransactionView}, so the same rules apply to either.
+ */
+interface TransactionData {
+
+    int numInputs();
+
+    int numOutputs();
+
+    /** @return the hash of the transaction whose output input {@code index} spends */
+    byte[] getPrevTxHash(int index);
+
+    /** @return the index of the output that input {@code index} spends */
+    int getOutputIndex(int index);
+
+    /** @return the signature of input {@code index}, or null if it has none */
+    byte[] getSignature(int index);
+
+    /** @return the value of output {@code index} */
+    long getValue(int index);
+
+    /** @return the start of the data signed by input {@code index}, as Transaction defines it */
+    ByteBuffer getSigningPrefixBuffer(int index);
+
+    /** @return the rest of the data signed by every input, as Transaction defines it */
+    ByteBuffer getOutputsDataBuffer();
+}
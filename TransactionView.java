@@ -0,0 +1,251 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.KeyFactory;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
+
+/**
+ * A read-only transaction that reads its fields from a frame in the {@link TransactionCodec} format
+ * instead of copying them into objects. Wrapping a frame checks its structure, down to each address
+ * being a single DER sequence, and records where each input and output starts; everything else,
+ * including the hash, is read from the buffer when asked for. Addresses are only decoded into keys
+ * by {@link #getAddress}, which validating a view with {@link TxHandler#isValidTx(TransactionView)}
+ * never calls: signatures are checked against the keys of the outputs being spent, which the pool
+ * already holds.
+ *
+ * <p>The buffer may be memory-mapped. A view reads whatever it holds at the time, so its bytes must
+ * not change while the view is in use.
+ */
+public class TransactionView implements TransactionData {
+
+    private final ByteBuffer frame;
+    /** Offset in {@code frame} of the hash length of each input */
+    private final int[] inputOffsets;
+    /** Offset in {@code frame} of the value of each output, followed by the end of the outputs */
+    private final int[] outputOffsets;
+    /** Computed on first use */
+    private volatile TxId id;
+
+    private TransactionView(ByteBuffer frame) throws IOException {
+        this.frame = frame;
+        ByteBuffer b = frame.duplicate();
+        b.position(TransactionCodec.HEADER_SIZE);
+
+        inputOffsets = new int[TransactionCodec.count(b, TransactionCodec.MIN_INPUT_SIZE)];
+        for (int i = 0; i < inputOffsets.length; i++) {
+            inputOffsets[i] = b.position();
+            skipField(b);
+            b.getInt();
+            skipField(b);
+        }
+
+        int outputCount = TransactionCodec.count(b, TransactionCodec.MIN_OUTPUT_SIZE);
+        int addressLengths = b.position();
+        int offset = addressLengths + outputCount * Integer.BYTES;
+        outputOffsets = new int[outputCount + 1];
+        for (int i = 0; i < outputCount; i++) {
+            outputOffsets[i] = offset;
+            int length = b.getInt(addressLengths + i * Integer.BYTES);
+            if (length < 0 || length > frame.limit() - offset - Long.BYTES)
+                throw new IOException("output of " + length + " address bytes doesn't fit in the "
+                    + "transaction");
+            if (!isDerSequence(frame, offset + Long.BYTES, length))
+                throw new IOException("address of output " + i + " is not a single DER sequence");
+            offset += Long.BYTES + length;
+        }
+        outputOffsets[outputCount] = offset;
+        if (offset != frame.limit())
+            throw new IOException(frame.limit() - offset + " unexpected bytes at the end of a "
+                + "transaction");
+    }
+
+    /** Wraps the frame at the position of {@code src} like {@link #wrap(ByteBuffer, int)} */
+    public static TransactionView wrap(ByteBuffer src) throws IOException {
+        return wrap(src, TransactionCodec.DEFAULT_MAX_SIZE);
+    }
+
+    /**
+     * @return a view of the frame starting at the position of {@code src}, whose position is
+     *         advanced past it. The view shares the bytes of {@code src}.
+     * @throws IOException if the frame is truncated, malformed or longer than {@code maxSize} bytes
+     *         after its header, in which case the position of {@code src} is unchanged
+     */
+    public static TransactionView wrap(ByteBuffer src, int maxSize) throws IOException {
+        if (src.remaining() < TransactionCodec.HEADER_SIZE)
+            throw new EOFException("truncated transaction");
+        ByteBuffer b = src.duplicate().order(ByteOrder.BIG_ENDIAN);
+        int size = TransactionCodec.HEADER_SIZE + TransactionCodec.frameLength(b, maxSize);
+        if (b.remaining() < size)
+            throw new EOFException("truncated transaction");
+        TransactionView view;
+        try {
+            view = new TransactionView(b.slice(b.position(), size));
+        } catch (BufferUnderflowException e) {
+            throw new IOException("transaction is longer than its frame", e);
+        }
+        src.position(src.position() + size);
+        return view;
+    }
+
+    /**
+     * @return true if the {@code length} bytes at {@code offset} are exactly one DER SEQUENCE, with
+     *         its length in the shortest form. An X.509 key that passes can still be invalid, which
+     *         {@link #getAddress} finds out, but one with trailing bytes or a padded length, which
+     *         {@link TransactionCodec#decode} refuses as non-canonical, never does.
+     */
+    private static boolean isDerSequence(ByteBuffer b, int offset, int length) {
+        if (length < 2 || b.get(offset) != 0x30)
+            return false;
+        int first = b.get(offset + 1) & 0xFF;
+        if (first < 0x80)
+            return 2 + first == length;
+        int lengthBytes = first & 0x7F;
+        //a length needing more than three bytes can't fit in a frame of at most 2^31 bytes anyway.
+        if (lengthBytes == 0 || lengthBytes > 3 || length < 2 + lengthBytes)
+            return false;
+        int contents = 0;
+        for (int i = 0; i < lengthBytes; i++)
+            contents = contents << 8 | b.get(offset + 2 + i) & 0xFF;
+        //the long form is only for lengths the short one can't hold, without leading zero bytes.
+        if (contents < 0x80 || contents >>> (8 * (lengthBytes - 1)) == 0)
+            return false;
+        return 2 + lengthBytes + contents == length;
+    }
+
+    private static void skipField(ByteBuffer b) throws IOException {
+        int length = TransactionCodec.fieldLength(b);
+        if (length > 0)
+            b.position(b.position() + length);
+    }
+
+    /** @return a copy of the hash of the transaction, see {@link #getId()} */
+    public byte[] getHash() {
+        return getId().toByteArray();
+    }
+
+    /** @return the id of the transaction, computed from the frame the first time it's asked for */
+    public TxId getId() {
+        TxId txId = id;
+        if (txId == null) {
+            MessageDigest md = Transaction.sha256();
+            //the raw transaction is each input's hash, index and signature, then the outputs.
+            for (int i = 0; i < inputOffsets.length; i++) {
+                md.update(getSigningPrefixBuffer(i));
+                int signature = signatureOffset(i);
+                int length = frame.getInt(signature);
+                if (length > 0)
+                    md.update(frame.slice(signature + Integer.BYTES, length));
+            }
+            md.update(getOutputsDataBuffer());
+            txId = new TxId(md.digest());
+            id = txId;
+        }
+        return txId;
+    }
+
+    public int numInputs() {
+        return inputOffsets.length;
+    }
+
+    public int numOutputs() {
+        return outputOffsets.length - 1;
+    }
+
+    /** @return a copy of the {@code prevTxHash} of input {@code index}, or null if it has none */
+    public byte[] getPrevTxHash(int index) {
+        return getField(inputOffsets[index]);
+    }
+
+    public int getOutputIndex(int index) {
+        return frame.getInt(signatureOffset(index) - Integer.BYTES);
+    }
+
+    /** @return a copy of the signature of input {@code index}, or null if it has none */
+    public byte[] getSignature(int index) {
+        return getField(signatureOffset(index));
+    }
+
+    public long getValue(int index) {
+        checkOutput(index);
+        return frame.getLong(outputOffsets[index]);
+    }
+
+    /**
+     * @return a view of the encoded address of output {@code index}, sharing the frame's bytes,
+     *         which must not be modified through it
+     */
+    public ByteBuffer getAddressBytes(int index) {
+        checkOutput(index);
+        int start = outputOffsets[index] + Long.BYTES;
+        return frame.slice(start, outputOffsets[index + 1] - start);
+    }
+
+    /**
+     * @return the address of output {@code index}, decoded as an RSA key on every call
+     * @throws IllegalStateException if the address is not a valid RSA key in its canonical
+     *         encoding
+     */
+    public PublicKey getAddress(int index) {
+        ByteBuffer encoded = getAddressBytes(index);
+        byte[] bytes = new byte[encoded.remaining()];
+        encoded.get(bytes);
+        PublicKey address;
+        try {
+            address = KeyFactory.getInstance("RSA").generatePublic(new X509EncodedKeySpec(bytes));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("RSA is not available", e);
+        } catch (InvalidKeySpecException e) {
+            throw new IllegalStateException("invalid address in output " + index, e);
+        }
+        //like TransactionCodec.decode, refuse an encoding the key doesn't reproduce.
+        if (!Arrays.equals(address.getEncoded(), bytes))
+            throw new IllegalStateException("non-canonical address in output " + index);
+        return address;
+    }
+
+    /**
+     * @return a view of the start of the data signed by input {@code index}, its
+     *         {@code prevTxHash} and {@code outputIndex}, which lie next to each other in the
+     *         frame. Like the other views, it shares the frame's bytes and must not be modified,
+     *         and isn't made read-only so that Signature and MessageDigest can read a heap frame's
+     *         array in place.
+     */
+    public ByteBuffer getSigningPrefixBuffer(int index) {
+        int start = inputOffsets[index] + Integer.BYTES;
+        return frame.slice(start, signatureOffset(index) - start);
+    }
+
+    /** @return a view of the serialized outputs, the signed data all inputs share */
+    public ByteBuffer getOutputsDataBuffer() {
+        int start = outputOffsets[0];
+        return frame.slice(start, outputOffsets[outputOffsets.length - 1] - start);
+    }
+
+    /** @return the offset of the signature length of input {@code index} */
+    private int signatureOffset(int index) {
+        int offset = inputOffsets[index];
+        return offset + 2 * Integer.BYTES + Math.max(0, frame.getInt(offset));
+    }
+
+    /** @return a copy of the length-prefixed field at {@code offset}, or null if it's absent */
+    private byte[] getField(int offset) {
+        int length = frame.getInt(offset);
+        if (length < 0)
+            return null;
+        byte[] bytes = new byte[length];
+        frame.get(offset + Integer.BYTES, bytes);
+        return bytes;
+    }
+
+    private void checkOutput(int index) {
+        if (index < 0 || index >= numOutputs())
+            throw new IndexOutOfBoundsException("output " + index + " of " + numOutputs());
+    }
+}
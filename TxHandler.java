@@ -1,21 +1,87 @@
+import java.nio.ByteBuffer;
+import java.security.PublicKey;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.IntStream;
 
 public class TxHandler {
 
     //declare the class variable to store the pool.
     private UTXOPool pool;
 
+    //threads used by handleTxs to verify the signatures of a batch. null when the handler was
+    //created with parallelism 1, in which case everything runs serially on the calling thread.
+    private final ForkJoinPool verifierPool;
+
+    //how many transactions this handler validated, by the reason of their verdict. LongAdders, so
+    //counting doesn't contend when several threads validate.
+    private final LongAdder[] verdictCounts = new LongAdder[TxVerdict.Reason.values().length];
+
+    //signatures verified, and signatures not verified since their tx failed a cheaper check.
+    private final LongAdder signaturesVerified = new LongAdder();
+    private final LongAdder signaturesAvoided = new LongAdder();
+
+    //the changes of the epoch handleTxs is handling, and the record of the last epoch it handled.
+    private UndoRecord.Journal journal;
+    private UndoRecord undoRecord = UndoRecord.EMPTY;
+
     /**
      * Creates a public ledger whose current UTXOPool (collection of unspent transaction outputs) is
      * {@code utxoPool}. This should make a copy of utxoPool by using the UTXOPool(UTXOPool uPool)
      * constructor.
      */
     public TxHandler(UTXOPool utxoPool) {
+        this(utxoPool, 1);
+    }
+
+    /**
+     * Creates a public ledger like {@link #TxHandler(UTXOPool)} whose {@code handleTxs} verifies the
+     * signatures of a batch on {@code parallelism} threads before applying the transactions to the
+     * pool one by one. The accepted transactions are the same as with a single thread.
+     */
+    public TxHandler(UTXOPool utxoPool, int parallelism) {
         //create a copy of the utxoPool that's passed in and store it in the class-level
-        //utxoPool variable defined above. The
-        pool = new UTXOPool(utxoPool);
+        //utxoPool variable defined above.
+        this(new UTXOPool(utxoPool), createVerifierPool(parallelism));
+    }
+
+    private TxHandler(UTXOPool pool, ForkJoinPool verifierPool) {
+        this.pool = pool;
+        this.verifierPool = verifierPool;
+        for (int i = 0; i < verdictCounts.length; i++)
+            verdictCounts[i] = new LongAdder();
+    }
+
+    /**
+     * Creates a handler that updates {@code ledger} itself rather than a copy of it, and commits it
+     * at the end of every {@code handleTxs}. This is how a pool backed by a persistent store such as
+     * {@link MappedUTXOStore} is kept up to date epoch by epoch. With an {@link OverlayUTXOPool} as
+     * the ledger, the epoch only changes the overlay, which can then be merged into its base or
+     * discarded.
+     */
+    public static TxHandler forLedger(UTXOPool ledger, int parallelism) {
+        return new TxHandler(ledger, createVerifierPool(parallelism));
+    }
+
+    //handlers are usually created once per epoch, so they share one verifier pool per parallelism
+    //level instead of each starting its own threads.
+    private static final ConcurrentHashMap<Integer, ForkJoinPool> verifierPools =
+        new ConcurrentHashMap<Integer, ForkJoinPool>();
+
+    private static ForkJoinPool createVerifierPool(int parallelism) {
+        if (parallelism < 1)
+            throw new IllegalArgumentException("parallelism must be at least 1: " + parallelism);
+        if (parallelism == 1)
+            return null;
+        return verifierPools.computeIfAbsent(parallelism, ForkJoinPool::new);
     }
 
     /**
@@ -28,122 +94,403 @@ public class TxHandler {
      *     values; and false otherwise.
      */
     public boolean isValidTx(Transaction tx) {
+        return validateTx(tx) == TxVerdict.VALID;
+    }
+
+    /**
+     * @return {@link TxVerdict#VALID} if {@link #isValidTx(Transaction)} is true, and otherwise the
+     *         verdict naming the rule {@code tx} breaks and the input or output breaking it. The
+     *         verdict is counted in {@link #verdictCount(TxVerdict.Reason)}.
+     */
+    public int validateTx(Transaction tx) {
+        return validateTx(tx, null);
+    }
+
+    /**
+     * @return true if the transaction in {@code view} satisfies the same rules as
+     *         {@link #isValidTx(Transaction)}. The view is checked in place: no Transaction is built
+     *         and none of its output addresses is decoded.
+     */
+    public boolean isValidTx(TransactionView view) {
+        return validateTx(view) == TxVerdict.VALID;
+    }
+
+    /** @return the verdict of the transaction in {@code view}, see validateTx(Transaction) */
+    public int validateTx(TransactionView view) {
+        if (view == null)
+            return count(TxVerdict.of(TxVerdict.Reason.NULL_TRANSACTION));
+        //a view is read-only, so there is nothing to clone.
+        return count(validateTxData(view, null));
+    }
+
+    /**
+     * @return for each transaction of {@code batch}, whether it is valid against the current pool
+     *         as {@link #isValidTx(Transaction)} defines it. Each one is checked on its own, without
+     *         applying the others.
+     */
+    public boolean[] isValidTx(TransactionBatch batch) {
+        int[] verdicts = validateTx(batch);
+        boolean[] valid = new boolean[verdicts.length];
+        for (int t = 0; t < verdicts.length; t++)
+            valid[t] = verdicts[t] == TxVerdict.VALID;
+        return valid;
+    }
+
+    /**
+     * @return the verdict of each transaction of {@code batch}, checked on its own like
+     *         {@link #isValidTx(TransactionBatch)} does, see {@link #validateTx(Transaction)}
+     */
+    public int[] validateTx(TransactionBatch batch) {
+        int[] verdicts = new int[batch.size()];
+        for (int t = 0; t < batch.size(); t++)
+            verdicts[t] = count(validateInBatch(batch, t, null, null));
+        return verdicts;
+    }
+
+    /**
+     * @return how many of the transactions this handler validated, in isValidTx, validateTx or
+     *         handleTxs, got a verdict with {@code reason}
+     */
+    public long verdictCount(TxVerdict.Reason reason) {
+        return verdictCounts[reason.ordinal()].sum();
+    }
+
+    //counts verdict under its reason and returns it.
+    private int count(int verdict) {
+        verdictCounts[TxVerdict.reason(verdict).ordinal()].increment();
+        return verdict;
+    }
+
+    //same as validateTx(tx), but input i's signature is not verified again when signatureChecks[i]
+    //was already computed for the output that input i spends in the current pool.
+    private int validateTx(Transaction tx, SignatureCheck[] signatureChecks) {
         if (tx == null)
-            return false;
+            return count(TxVerdict.of(TxVerdict.Reason.NULL_TRANSACTION));
+
+        //an ImmutableTransaction can't be tampered with, so it is checked as it is.
+        if (tx instanceof ImmutableTransaction)
+            return count(validateTxData(tx, signatureChecks));
 
         //clone the tx passed in to prevent tampering of the data. Not sure if we really
         //need to be this detailed about it for this class, but trying to cover all basis here.
-        Transaction txClone = new Transaction(tx);
+        return count(validateTxData(new Transaction(tx), signatureChecks));
+    }
+
+    //the rules of isValidTx, for either a Transaction or a TransactionView. Returns the verdict of
+    //the first rule that fails. The checks run from the cheapest to the most expensive: outputs,
+    //then pool lookups and duplicates, then the value balance, and only once all of those passed
+    //the signatures, so an invalid tx costs no RSA work unless only its signatures are wrong.
+    private int validateTxData(TransactionData txClone, SignatureCheck[] signatureChecks) {
 
         //(5) store the sum of the input values for comarison later against the output values.
-        double inputValueSum = 0;
-        double outputValueSum = 0;
+        //values are whole base units, so the sums are exact as long as they don't overflow.
+        long inputValueSum = 0;
+        long outputValueSum = 0;
+
+        //we loop through the outputs first, since they don't even need the pool.
+        for (int i = 0; i < txClone.numOutputs(); i++)
+        {
+            long value = txClone.getValue(i);
+            //(4) all of tx output values are non-negative
+            if (value < 0)
+                return avoidSignatures(txClone, signatureChecks,
+                    TxVerdict.of(TxVerdict.Reason.NEGATIVE_OUTPUT, i));
+
+            //(5) calculate the sum of the tx outputs.
+            try {
+                outputValueSum = Math.addExact(outputValueSum, value);
+            } catch (ArithmeticException e) {
+                return avoidSignatures(txClone, signatureChecks,
+                    TxVerdict.of(TxVerdict.Reason.OUTPUT_OVERFLOW, i));
+            }
+        }
 
         //(3) this is to keep track of the UTXOs that were already consumed in the current tx. Without this,
         //there could be a case that multiple inputs of the same tx point to the same utxo to consume. So
         //we need to track the ones we consumed, but without actually removing it from the pool just yet in case the tx
         //is not valid due to other rules that failed.
         Set<UTXO> consumedUTXO = new HashSet<UTXO>();
+        //the outputs the inputs spend, kept for the signature checks at the end.
+        Transaction.Output[] spentOutputs = new Transaction.Output[txClone.numInputs()];
 
         for (int i = 0; i < txClone.numInputs(); i++) {
-            //get the input at the current index.
-            Transaction.Input input = txClone.getInput(i);
-            //build a utxo object based on the data from the input we just got.
-            UTXO utxo = new UTXO(input.prevTxHash, input.outputIndex);
+            //build a utxo object based on the input at the current index.
+            UTXO utxo = new UTXO(prevTxHash(txClone, i), txClone.getOutputIndex(i));
 
-            //(1) all outputs claimed by transaction are in the current UTXO pool
-            if (!pool.contains(utxo)) {
+            //(1) all outputs claimed by transaction are in the current UTXO pool. Getting the
+            //output answers that too, so the pool is only searched once.
+            Transaction.Output utxoOutput = pool.getTxOutput(utxo);
+            if (utxoOutput == null) {
                 //the utxo was not in the pool. The transaction is therefore invalid.
-                return false;
-            }
-            
-            //(3) no UTXO is claimed multiple times by transaction.
-            if (consumedUTXO.contains(utxo))
-            {
-                //the utxo was already claimed. This is double spending.
-                return false;
+                return avoidSignatures(txClone, signatureChecks,
+                    TxVerdict.of(TxVerdict.Reason.MISSING_UTXO, i));
             }
 
-            //get the output for the utxo in the pool that matches the input.
-            Transaction.Output utxoOutput = pool.getTxOutput(utxo);
-            //always good to check for nulls.
-            if (utxoOutput == null)
-                return false;
+            //(3) no UTXO is claimed multiple times by transaction. add returns false if the utxo
+            //was already claimed by an earlier input. This is double spending.
+            if (!consumedUTXO.add(utxo))
+                return avoidSignatures(txClone, signatureChecks,
+                    TxVerdict.of(TxVerdict.Reason.DOUBLE_SPEND, i));
 
-            //(2) the signatures on each input of transaction are valid.
-            boolean isSignatureValid = Crypto.verifySignature(utxoOutput.address, 
-                txClone.getRawDataToSign(i), input.signature);
+            //(5) keep track of the sum of the input values
+            try {
+                inputValueSum = Math.addExact(inputValueSum, utxoOutput.value);
+            } catch (ArithmeticException e) {
+                return avoidSignatures(txClone, signatureChecks,
+                    TxVerdict.of(TxVerdict.Reason.INPUT_OVERFLOW, i));
+            }
+            spentOutputs[i] = utxoOutput;
+        }
 
-            if (!isSignatureValid) {
+        //(5) the sum of txs input values is greater than or equal to the sum of its output values
+        if (inputValueSum < outputValueSum)
+            return avoidSignatures(txClone, signatureChecks,
+                TxVerdict.of(TxVerdict.Reason.VALUE_IMBALANCE));
+
+        //(2) the signatures on each input of transaction are valid. Everything else passed.
+        for (int i = 0; i < spentOutputs.length; i++) {
+            if (!isSignatureValid(txClone, i, spentOutputs[i].address, signatureChecks)) {
                 //the signature of the input was invalid. The transaction is therefore invalid.
-                return false;
+                return TxVerdict.of(TxVerdict.Reason.INVALID_SIGNATURE, i);
             }
-            
-            //(5) keep track of the sum of the input values
-            inputValueSum += utxoOutput.value;
-
-            //(3) store the utxo to check against the other inputs to make sure they're not used more than once.
-            consumedUTXO.add(utxo);
         }
 
-        //now we loop through the outputs to check validity
-        for (int i = 0; i < txClone.numOutputs(); i++)
-        {
-            Transaction.Output output = txClone.getOutput(i);
-            //(4) all of tx output values are non-negative            
-            if (output.value < 0)
-                return false;
+        return TxVerdict.VALID;
+    }
 
-            //(5) calculate the sum of the tx outputs.
-            outputValueSum += output.value;
+    //whether the signature of input i of tx is valid for address, using signatureChecks[i] if it
+    //was already computed for that address.
+    private boolean isSignatureValid(TransactionData tx, int i, PublicKey address,
+        SignatureCheck[] signatureChecks)
+    {
+        if (signatureChecks != null && signatureChecks[i] != null
+                && signatureChecks[i].address.equals(address))
+            return signatureChecks[i].valid;
+        signaturesVerified.increment();
+        return Crypto.verifySignature(address, tx.getSigningPrefixBuffer(i), outputsData(tx),
+            signature(tx, i));
+    }
+
+    //the prevTxHash and the signature of input i of tx, without the copy that the getters of an
+    //ImmutableTransaction make. A TransactionView copies them out of its frame either way.
+    private static byte[] prevTxHash(TransactionData tx, int i) {
+        return tx instanceof Transaction ? ((Transaction) tx).prevTxHash(i) : tx.getPrevTxHash(i);
+    }
+
+    private static byte[] signature(TransactionData tx, int i) {
+        return tx instanceof Transaction ? ((Transaction) tx).signature(i) : tx.getSignature(i);
+    }
+
+    //the outputs section of tx, without the read-only view an ImmutableTransaction hands out,
+    //which hides the array and makes the digest copy the bytes out on every verification.
+    private static ByteBuffer outputsData(TransactionData tx) {
+        return tx instanceof Transaction ? ((Transaction) tx).outputsDataBuffer()
+            : tx.getOutputsDataBuffer();
+    }
+
+    //counts the signatures of tx that a cheap check just saved from being verified, meaning those
+    //that weren't already verified up front, and returns verdict.
+    private int avoidSignatures(TransactionData tx, SignatureCheck[] signatureChecks, int verdict) {
+        int avoided = tx.numInputs();
+        if (signatureChecks != null) {
+            for (SignatureCheck check : signatureChecks) {
+                if (check != null)
+                    avoided--;
+            }
         }
+        signaturesAvoided.add(avoided);
+        return verdict;
+    }
 
-        //(5) the sum of txs input values is greater than or equal to the sum of its output values
-        if (inputValueSum < outputValueSum)
-            return false;
+    //same rules as validateTxData for transaction t of batch, in the same order. The checks that
+    //don't depend on the pool were done when the batch was built, so only the pool lookups, the
+    //input sum and then the signatures remain. The outpoints of the inputs are only turned into
+    //UTXOs here, for the lookups, and are left in spent, if not null, for updating the pool.
+    private int validateInBatch(TransactionBatch batch, int t, SignatureCheck[] signatureChecks,
+        UTXO[] spent) {
+        Transaction tx = batch.getTransaction(t);
+        int verdict = batch.verdicts[t];
+        TxVerdict.Reason reason = TxVerdict.reason(verdict);
+        //(4) and (5) the outputs were checked first, as validateTxData does.
+        if (reason == TxVerdict.Reason.NEGATIVE_OUTPUT
+                || reason == TxVerdict.Reason.OUTPUT_OVERFLOW)
+            return avoidSignatures(tx, signatureChecks, verdict);
+        int start = batch.inputStart[t];
+        int end = batch.inputStart[t + 1];
+        //an input at fault, without prevTxHash or repeating an outpoint, only fails once the
+        //inputs before it were found in the pool; validateTxData would reject a missing one first.
+        int checked = verdict == TxVerdict.VALID ? end : start + TxVerdict.index(verdict);
+        if (spent == null)
+            spent = new UTXO[end - start];
+        long inputValueSum = 0;
+        for (int k = start; k < checked; k++) {
+            //(1) the claimed output is in the pool.
+            spent[k - start] = batch.outpoint(k);
+            Transaction.Output utxoOutput = pool.getTxOutput(spent[k - start]);
+            if (utxoOutput == null)
+                return avoidSignatures(tx, signatureChecks,
+                    TxVerdict.of(TxVerdict.Reason.MISSING_UTXO, k - start));
+            //(5) keep track of the sum of the input values
+            try {
+                inputValueSum = Math.addExact(inputValueSum, utxoOutput.value);
+            } catch (ArithmeticException e) {
+                return avoidSignatures(tx, signatureChecks,
+                    TxVerdict.of(TxVerdict.Reason.INPUT_OVERFLOW, k - start));
+            }
+        }
+        if (verdict != TxVerdict.VALID)
+            return avoidSignatures(tx, signatureChecks, verdict);
+        if (inputValueSum < batch.outputSums[t])
+            return avoidSignatures(tx, signatureChecks,
+                TxVerdict.of(TxVerdict.Reason.VALUE_IMBALANCE));
+        //(2) the signatures are valid. The outputs were found above, so looking them up again
+        //is a hit in the pool, which is cheaper than keeping them in an array per tx.
+        for (int k = start; k < end; k++) {
+            Transaction.Output utxoOutput = pool.getTxOutput(spent[k - start]);
+            if (!isSignatureValid(tx, k - start, utxoOutput.address, signatureChecks))
+                return TxVerdict.of(TxVerdict.Reason.INVALID_SIGNATURE, k - start);
+        }
+        return TxVerdict.VALID;
+    }
 
-        return true;
+    /**
+     * @return how many signatures this handler verified with {@link Crypto}, including those
+     *         handleTxs verifies up front on several threads
+     */
+    public long signaturesVerified() {
+        return signaturesVerified.sum();
+    }
+
+    /**
+     * @return how many signatures this handler didn't verify because their transaction failed a
+     *         cheaper check first
+     */
+    public long signaturesAvoided() {
+        return signaturesAvoided.sum();
     }
 
     /**
      * Handles each epoch by receiving an unordered array of proposed transactions, checking each
      * transaction for correctness, returning a mutually valid array of accepted transactions, and
      * updating the current UTXO pool as appropriate.
+     *
+     * <p>When transactions conflict, the one accepted, and the order of the returned array, are
+     * those of checking the array in passes from the last transaction to the first, accepting
+     * every valid one as it is reached, until a pass accepts nothing. Each transaction is still
+     * only checked once, when that pass would first find all its in-batch parents accepted.
      */
     public Transaction[] handleTxs(Transaction[] possibleTxs) {
-        ArrayList<Transaction> pendingTxsList = toArrayList(possibleTxs);
+        return handleTxs(toArrayList(possibleTxs), null);
+    }
+
+    /**
+     * Handles an epoch like {@link #handleTxs(Transaction[])} and accepts the same transactions. The
+     * checks that don't depend on the pool were already done when {@code batch} was built, so
+     * transactions failing them are rejected without pool lookups or signature verification.
+     */
+    public Transaction[] handleTxs(TransactionBatch batch) {
+        ArrayList<Transaction> pendingTxsList = new ArrayList<Transaction>(batch.size());
+        for (int i = 0; i < batch.size(); i++)
+            pendingTxsList.add(batch.getTransaction(i));
+        return handleTxs(pendingTxsList, batch);
+    }
+
+    //handles the non-null txs of an epoch. batch is either null or holds the same txs in the same
+    //order, in which case its columns are used instead of checking each tx from scratch.
+    private Transaction[] handleTxs(ArrayList<Transaction> pendingTxsList, TransactionBatch batch) {
         ArrayList<Transaction> validTxsList = new ArrayList<Transaction>();
+        int txCount = pendingTxsList.size();
+        journal = new UndoRecord.Journal();
 
-        //keep track if this iteration contains any valid transactions.  
-        //If it does we need to reprocess the ones that failed until there are no more valid
-        //transactions found. We do this because of the requirement that a tx in the batch
-        //can actually reference the output of another tx in the same batch. We need to know when to stop processing.
-        boolean validTxExists = false;
-        do
-        {
-            //reset after each iteration to see if we find a valid tx this time around.
-            validTxExists = false;
+        //a tx in the batch can reference the output of another tx in the same batch, so instead of
+        //re-running every pending tx until a pass accepts nothing, we build the in-batch dependency
+        //graph once and validate each tx exactly once, after all of its in-batch parents were decided.
+        HashMap<ByteBuffer, Integer> txIndexByHash = new HashMap<ByteBuffer, Integer>();
+        for (int i = 0; i < txCount; i++) {
+            TxId id = pendingTxsList.get(i).getId();
+            //if the same tx shows up twice only the last copy can have children: the passes below
+            //reach it first, and the other one is then rejected as a double spend.
+            if (id != null)
+                txIndexByHash.put(ByteBuffer.wrap(id.bytes()), i);
+        }
 
-            //loop backwards to properly be able to remove items from the list.
-            //this is a pattern for removing items from a list without affecting the loop.
-            for(int i = pendingTxsList.size() - 1; i >= 0; i--)
-            {
-                Transaction tx = pendingTxsList.get(i);
-                //this approach is not optimized but the logic works. We're potentially
-                //checking if the same tx is valid multiple times (minus the utxo check).
-                if (isValidTx(tx))
-                {
-                    //track the valid tx
-                    validTxsList.add(tx);
-                    //remove it from the pending tx list
-                    pendingTxsList.remove(i);
-                    //flag that this iteration contains a valid tx. This will force the while loop to rerun once more.
-                    validTxExists = true;
-                    //update utxo pool with the outputs of new tx.
-                    updateUTXOPool(tx);
+        //unresolvedParents[i] counts the edges from in-batch parents that were not accepted yet,
+        //and children.get(p) holds one entry per input of a child that spends an output of tx p.
+        int[] unresolvedParents = new int[txCount];
+        ArrayList<ArrayList<Integer>> children = new ArrayList<ArrayList<Integer>>(txCount);
+        for (int i = 0; i < txCount; i++)
+            children.add(null);
+        for (int i = 0; i < txCount; i++) {
+            Transaction tx = pendingTxsList.get(i);
+            for (int j = 0; j < tx.numInputs(); j++) {
+                byte[] prevTxHash = tx.prevTxHash(j);
+                if (prevTxHash == null)
+                    continue;
+                Integer parent = txIndexByHash.get(ByteBuffer.wrap(prevTxHash));
+                if (parent == null || parent == i)
+                    continue;
+                if (children.get(parent) == null)
+                    children.set(parent, new ArrayList<Integer>());
+                children.get(parent).add(i);
+                unresolvedParents[i]++;
+            }
+        }
+
+        //the signatures don't depend on the order in which the txs get applied, only on which output
+        //each input spends, so they can all be verified up front on several threads.
+        SignatureCheck[][] signatureChecks = null;
+        if (verifierPool != null)
+            signatureChecks = verifySignatures(pendingTxsList, txIndexByHash, batch);
+
+        //Kahn's algorithm, in the order of repeated passes over the batch from its last tx to its
+        //first, which decides the conflicts. A tx is checked at the first point of a pass where
+        //all its in-batch parents were accepted: later in the same pass if the pass reaches it
+        //after the last parent, at that point of the next pass otherwise. Before that point it
+        //would fail for a missing output, and after it only spent outputs leave the pool, so one
+        //check decides it. Points are keyed as pass * txCount + how far the pass is into the batch.
+        PriorityQueue<Long> readyTxs = new PriorityQueue<Long>();
+        for (int i = 0; i < txCount; i++) {
+            if (unresolvedParents[i] == 0)
+                readyTxs.add((long) txCount - 1 - i);
+        }
+        boolean[] decided = new boolean[txCount];
+        while (!readyTxs.isEmpty()) {
+            long point = readyTxs.poll();
+            long pass = point / txCount;
+            int i = txCount - 1 - (int) (point % txCount);
+            decided[i] = true;
+            if (!acceptIfValid(pendingTxsList, i, batch,
+                    signatureChecks == null ? null : signatureChecks[i], validTxsList))
+                continue;
+
+            ArrayList<Integer> txChildren = children.get(i);
+            if (txChildren == null)
+                continue;
+            for (int child : txChildren) {
+                if (--unresolvedParents[child] == 0)
+                    readyTxs.add((child < i ? pass : pass + 1) * txCount + txCount - 1 - child);
+            }
+        }
+
+        //txs left over spend an output of an in-batch tx that was rejected, or are part of a hash
+        //cycle, which can only happen with hashes set by hand via setHash. They can still be valid
+        //if the pool already holds the outputs, so they get the same passes as everything else.
+        boolean acceptedAny;
+        do {
+            acceptedAny = false;
+            for (int i = txCount - 1; i >= 0; i--) {
+                if (!decided[i] && acceptIfValid(pendingTxsList, i, batch,
+                        signatureChecks == null ? null : signatureChecks[i], validTxsList)) {
+                    decided[i] = true;
+                    acceptedAny = true;
                 }
             }
-        } while(validTxExists);
+        } while (acceptedAny);
+
+        //the epoch is over. This makes it durable if the pool is backed by a persistent store.
+        pool.commit();
+        undoRecord = journal.toRecord();
+        journal = null;
 
         //here we just convert the ArrayList to an Array so we can return it from this method.
         Transaction validTxs[] = new Transaction[validTxsList.size()];
@@ -151,6 +498,148 @@ public class TxHandler {
         return validTxs;
     }
 
+    //validates tx i against the current pool and, if it is valid, records it as accepted and
+    //applies it to the pool so later txs in the batch can spend its outputs. Returns whether it
+    //was accepted.
+    private boolean acceptIfValid(ArrayList<Transaction> txs, int i, TransactionBatch batch,
+        SignatureCheck[] signatureChecks, ArrayList<Transaction> validTxsList)
+    {
+        Transaction tx = txs.get(i);
+        if (batch == null)
+        {
+            if (validateTx(tx, signatureChecks) != TxVerdict.VALID)
+                return false;
+            validTxsList.add(tx);
+            updateUTXOPool(tx, spentBy(tx));
+        }
+        else
+        {
+            UTXO[] spent = new UTXO[batch.inputStart[i + 1] - batch.inputStart[i]];
+            if (count(validateInBatch(batch, i, signatureChecks, spent)) != TxVerdict.VALID)
+                return false;
+            validTxsList.add(tx);
+            updateUTXOPool(tx, Arrays.asList(spent));
+        }
+        return true;
+    }
+
+    //the result of verifying the signature of one input against the address of the output it spends.
+    private static class SignatureCheck {
+        final PublicKey address;
+        final boolean valid;
+
+        SignatureCheck(PublicKey address, boolean valid) {
+            this.address = address;
+            this.valid = valid;
+        }
+    }
+
+    //verifies the signature of every input of the batch on the verifier pool. The output an input
+    //spends is looked up in the batch first and in the pool otherwise; the pool is only read here.
+    //Like the serial checks, the cheap ones come first: a tx with an output that can't be found,
+    //a negative output, a repeated input or more output value than input value is rejected later
+    //whatever its signatures are, so its signatures are left null and never verified.
+    private SignatureCheck[][] verifySignatures(ArrayList<Transaction> txs,
+        HashMap<ByteBuffer, Integer> txIndexByHash, TransactionBatch batch)
+    {
+        SignatureCheck[][] checks = new SignatureCheck[txs.size()][];
+        ArrayList<int[]> work = new ArrayList<int[]>();
+        ArrayList<PublicKey> workAddresses = new ArrayList<PublicKey>();
+        for (int i = 0; i < txs.size(); i++) {
+            Transaction tx = txs.get(i);
+            checks[i] = new SignatureCheck[tx.numInputs()];
+            //a tx that failed the batch's own checks will be rejected whatever its signatures are.
+            if (batch != null && batch.verdicts[i] != TxVerdict.VALID)
+                continue;
+            long outputValueSum = batch != null ? batch.outputSums[i] : sumOutputs(tx);
+            if (outputValueSum < 0 || (batch == null && hasDuplicateInputs(tx)))
+                continue;
+            PublicKey[] addresses = new PublicKey[tx.numInputs()];
+            long inputValueSum = 0;
+            for (int j = 0; j < tx.numInputs() && inputValueSum >= 0; j++) {
+                byte[] prevTxHash = tx.prevTxHash(j);
+                int outputIndex = tx.getOutputIndex(j);
+                if (prevTxHash == null)
+                    break;
+                long value = 0;
+                Integer parent = txIndexByHash.get(ByteBuffer.wrap(prevTxHash));
+                if (parent != null && batch != null) {
+                    int output = batch.outputStart[parent] + outputIndex;
+                    if (outputIndex >= 0 && output < batch.outputStart[parent + 1]) {
+                        addresses[j] = batch.addresses[output];
+                        value = batch.values[output];
+                    }
+                } else if (parent != null) {
+                    Transaction parentTx = txs.get(parent);
+                    if (outputIndex >= 0 && outputIndex < parentTx.numOutputs()) {
+                        addresses[j] = parentTx.getAddress(outputIndex);
+                        value = parentTx.getValue(outputIndex);
+                    }
+                }
+                if (addresses[j] == null) {
+                    Transaction.Output spent = pool.getTxOutput(new UTXO(prevTxHash, outputIndex));
+                    if (spent == null)
+                        break;
+                    addresses[j] = spent.address;
+                    value = spent.value;
+                }
+                //values are non-negative, so an overflowing sum turns negative and ends the loop.
+                inputValueSum += Math.max(value, 0);
+            }
+            if (addresses.length > 0 && addresses[addresses.length - 1] == null)
+                continue;
+            if (inputValueSum < outputValueSum)
+                continue;
+            for (int j = 0; j < tx.numInputs(); j++) {
+                if (tx.signature(j) == null)
+                    continue;
+                work.add(new int[] { i, j });
+                workAddresses.add(addresses[j]);
+            }
+        }
+
+        verifierPool.submit(() -> IntStream.range(0, work.size()).parallel().forEach(k -> {
+            int[] item = work.get(k);
+            Transaction tx = txs.get(item[0]);
+            PublicKey address = workAddresses.get(k);
+            boolean valid = Crypto.verifySignature(address, tx.getSigningPrefixBuffer(item[1]),
+                tx.outputsDataBuffer(), tx.signature(item[1]));
+            signaturesVerified.increment();
+            //each task writes its own slot, and join() below publishes the writes.
+            checks[item[0]][item[1]] = new SignatureCheck(address, valid);
+        })).join();
+        return checks;
+    }
+
+    //the sum of the output values of tx, or -1 if one is negative or the sum overflows.
+    private static long sumOutputs(Transaction tx)
+    {
+        long sum = 0;
+        for (int i = 0; i < tx.numOutputs(); i++)
+        {
+            long value = tx.getValue(i);
+            if (value < 0)
+                return -1;
+            sum += value;
+            if (sum < 0)
+                return -1;
+        }
+        return sum;
+    }
+
+    //whether two inputs of tx spend the same output.
+    private static boolean hasDuplicateInputs(Transaction tx)
+    {
+        HashSet<UTXO> seen = new HashSet<UTXO>();
+        for (int i = 0; i < tx.numInputs(); i++)
+        {
+            byte[] prevTxHash = tx.prevTxHash(i);
+            if (prevTxHash != null && !seen.add(new UTXO(prevTxHash, tx.getOutputIndex(i))))
+                return true;
+        }
+        return false;
+    }
+
     //this is a helper function to convert an array to an ArrayList. ArrayList allows
     //items to be added to it dynamically.
     private ArrayList<Transaction> toArrayList(Transaction[] txs)
@@ -167,27 +656,62 @@ public class TxHandler {
         return txsList;
     }
 
-    //this is called when we know that the tx is valid, so all the 
-    //tx inputs should be in the utxo pool at this point.
-    private void updateUTXOPool(Transaction tx)
+    //validates tx against the current pool and applies it if it is valid, for callers such as
+    //Mempool that take transactions one at a time.
+    boolean applyIfValid(Transaction tx)
     {
-        //step 1. remove each utxo that matches the inputs of the tx, thus
-        //marking that UTXO as claimed.
+        if (validateTx(tx, null) != TxVerdict.VALID)
+            return false;
+        updateUTXOPool(tx, spentBy(tx));
+        return true;
+    }
+
+    /**
+     * @return the changes the last {@code handleTxs} made to the pool, which
+     *         {@link UTXOPool#revert(UndoRecord)} undoes, or {@link UndoRecord#EMPTY} before the
+     *         first one
+     */
+    public UndoRecord getUndoRecord() {
+        return undoRecord;
+    }
+
+    //step 1 of updating the pool. collect each utxo that matches the inputs of the tx. Removing
+    //them marks those UTXOs as claimed.
+    private ArrayList<UTXO> spentBy(Transaction tx)
+    {
+        ArrayList<UTXO> spent = new ArrayList<UTXO>(tx.numInputs());
         for(int i = 0; i < tx.numInputs(); i++)
         {
-            Transaction.Input input = tx.getInput(i);
-            UTXO inputUTXO = new UTXO(input.prevTxHash, input.outputIndex);
-            pool.removeUTXO(inputUTXO);
+            spent.add(new UTXO(tx.prevTxHash(i), tx.getOutputIndex(i)));
         }
+        return spent;
+    }
+
+    //this is called when we know that the tx is valid, so all the 
+    //tx inputs, which spent holds, should be in the utxo pool at this point.
+    private void updateUTXOPool(Transaction tx, List<UTXO> spent)
+    {
 
-        //step 2. Build a new UTXO for the outputs in the current tx and add it to 
+        //step 2. Build a new UTXO for the outputs in the current tx to add to
         //the UTXO pool. The outputs of the current tx will be considered the new UTXO
         //that can be claimed later.
+        ArrayList<UTXO> created = new ArrayList<UTXO>(tx.numOutputs());
         for(int i = 0; i < tx.numOutputs(); i++)
         {
-            Transaction.Output output = tx.getOutput(i);
-            UTXO outputUTXO = new UTXO(tx.getHash(), i);
-            pool.addUTXO(outputUTXO, output);
+            created.add(new UTXO(tx.getId(), i));
         }
+
+        //while handling an epoch, keep what is removed so the epoch can be reverted.
+        List<Transaction.Output> createdOutputs = tx.getOutputs();
+        if (journal != null)
+        {
+            for (UTXO utxo : spent)
+                journal.spent(utxo, pool.getTxOutput(utxo));
+            for (int i = 0; i < created.size(); i++)
+                journal.created(created.get(i), createdOutputs.get(i));
+        }
+
+        //step 3. apply both as one update, so a concurrent pool publishes the whole tx at once.
+        pool.update(spent, created, createdOutputs);
     }
 }
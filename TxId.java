@@ -0,0 +1,74 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.HexFormat;
+
+/**
+ * The id of a transaction, its hash, as an immutable value. Unlike the array returned by
+ * {@link Transaction#getHash()}, a TxId can be handed out and used as a map key without copying it,
+ * and its hash code is computed once.
+ */
+public final class TxId implements Comparable<TxId> {
+
+    private static final VarHandle LONG_VIEW =
+        MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+    private final byte[] bytes;
+    private final int hash;
+
+    /** Creates an id that takes ownership of {@code bytes}, which must not be modified afterwards */
+    TxId(byte[] bytes) {
+        this.bytes = bytes;
+        //ids are SHA-256 digests, whose first 8 bytes are already uniformly distributed.
+        if (bytes.length >= Long.BYTES) {
+            long h = (long) LONG_VIEW.get(bytes, 0);
+            this.hash = (int) (h ^ (h >>> 32));
+        } else {
+            this.hash = Arrays.hashCode(bytes);
+        }
+    }
+
+    /** @return the id with a copy of {@code hash} as its bytes */
+    public static TxId of(byte[] hash) {
+        return new TxId(hash.clone());
+    }
+
+    /** @return a copy of the bytes of this id */
+    public byte[] toByteArray() {
+        return bytes.clone();
+    }
+
+    /** @return the bytes of this id, which must not be modified */
+    byte[] bytes() {
+        return bytes;
+    }
+
+    /** @return the number of bytes in this id */
+    public int length() {
+        return bytes.length;
+    }
+
+    public boolean equals(Object other) {
+        if (this == other)
+            return true;
+        if (!(other instanceof TxId))
+            return false;
+        TxId id = (TxId) other;
+        return hash == id.hash && Arrays.equals(bytes, id.bytes);
+    }
+
+    public int hashCode() {
+        return hash;
+    }
+
+    /** Orders ids by their bytes, compared as unsigned numbers */
+    public int compareTo(TxId other) {
+        return Arrays.compareUnsigned(bytes, other.bytes);
+    }
+
+    /** @return the bytes of this id in hexadecimal */
+    public String toString() {
+        return HexFormat.of().formatHex(bytes);
+    }
+}
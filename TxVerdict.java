@@ -0,0 +1,75 @@
+/**
+ * The outcome of validating a transaction, packed in an int so that validating allocates nothing:
+ * the {@link Reason} it was rejected for, and the index of the input or output that broke the rule,
+ * if there is one. A valid transaction's verdict is {@link #VALID}.
+ */
+public final class TxVerdict {
+
+    /** Why a transaction was rejected */
+    public enum Reason {
+        /** the transaction is valid */
+        VALID,
+        /** the transaction is null */
+        NULL_TRANSACTION,
+        /** an input spends an output that is not in the pool */
+        MISSING_UTXO,
+        /** the signature of an input is invalid */
+        INVALID_SIGNATURE,
+        /** an input spends the same output as an earlier input */
+        DOUBLE_SPEND,
+        /** an output value is negative */
+        NEGATIVE_OUTPUT,
+        /** the output values overflow when summed, at the output that makes the sum overflow */
+        OUTPUT_OVERFLOW,
+        /** the input values overflow when summed, at the input that makes the sum overflow */
+        INPUT_OVERFLOW,
+        /** the output values sum to more than the input values */
+        VALUE_IMBALANCE
+    }
+
+    /** The verdict of a valid transaction */
+    public static final int VALID = 0;
+
+    private static final Reason[] REASONS = Reason.values();
+    private static final int REASON_BITS = 8;
+    private static final int REASON_MASK = (1 << REASON_BITS) - 1;
+
+    private TxVerdict() {
+    }
+
+    /** @return the verdict for {@code reason}, not tied to an input or output */
+    static int of(Reason reason) {
+        return reason.ordinal();
+    }
+
+    /** @return the verdict for {@code reason} caused by the input or output at {@code index} */
+    static int of(Reason reason, int index) {
+        //index + 1 so that a verdict without index, VALID included, keeps 0 in the upper bits.
+        return (index + 1) << REASON_BITS | reason.ordinal();
+    }
+
+    /** @return true if {@code verdict} is the verdict of a valid transaction */
+    public static boolean isValid(int verdict) {
+        return verdict == VALID;
+    }
+
+    /** @return the reason of {@code verdict} */
+    public static Reason reason(int verdict) {
+        return REASONS[verdict & REASON_MASK];
+    }
+
+    /**
+     * @return the index of the output, for {@link Reason#NEGATIVE_OUTPUT} and
+     *         {@link Reason#OUTPUT_OVERFLOW}, or of the input, for the other reasons, that caused
+     *         {@code verdict}, or -1 if it isn't tied to one
+     */
+    public static int index(int verdict) {
+        return (verdict >>> REASON_BITS) - 1;
+    }
+
+    /** @return a description of {@code verdict}, such as "INVALID_SIGNATURE at 2" */
+    public static String toString(int verdict) {
+        int index = index(verdict);
+        return index < 0 ? reason(verdict).name() : reason(verdict).name() + " at " + index;
+    }
+}
@@ -1,12 +1,22 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
 import java.util.Arrays;
 
 public class UTXO implements Comparable<UTXO> {
 
+    /** Reads 8 bytes of a byte[] as one long */
+    private static final VarHandle LONG_VIEW =
+        MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
     /** Hash of the transaction from which this UTXO originates */
-    private byte[] txHash;
+    private final byte[] txHash;
 
     /** Index of the corresponding output in said transaction */
-    private int index;
+    private final int index;
+
+    /** Hash code of this UTXO, computed once since UTXOs are mostly used as map keys */
+    private final int hash;
 
     /**
      * Creates a new UTXO corresponding to the output with index <index> in the transaction whose
@@ -15,9 +25,33 @@ public class UTXO implements Comparable<UTXO> {
     public UTXO(byte[] txHash, int index) {
         this.txHash = Arrays.copyOf(txHash, txHash.length);
         this.index = index;
+        this.hash = computeHash(this.txHash, index);
+    }
+
+    /**
+     * Creates a new UTXO corresponding to the output with index {@code index} in the transaction
+     * whose hash is bytes {@code from} to {@code to} of {@code txHashes}, which are copied
+     */
+    UTXO(byte[] txHashes, int from, int to, int index) {
+        this.txHash = Arrays.copyOfRange(txHashes, from, to);
+        this.index = index;
+        this.hash = computeHash(this.txHash, index);
+    }
+
+    /**
+     * Creates a new UTXO corresponding to the output with index {@code index} in the transaction
+     * with id {@code txId}. The id is immutable, so its bytes are shared instead of copied.
+     */
+    public UTXO(TxId txId, int index) {
+        this.txHash = txId.bytes();
+        this.index = index;
+        this.hash = computeHash(this.txHash, index);
     }
 
-    /** @return the transaction hash of this UTXO */
+    /**
+     * @return the transaction hash of this UTXO. The array is not copied and must not be modified,
+     *         as that would change the UTXO's hash code while it is stored in a pool.
+     */
     public byte[] getTxHash() {
         return txHash;
     }
@@ -40,15 +74,7 @@ public class UTXO implements Comparable<UTXO> {
         }
 
         UTXO utxo = (UTXO) other;
-        byte[] hash = utxo.txHash;
-        int in = utxo.index;
-        if (hash.length != txHash.length || index != in)
-            return false;
-        for (int i = 0; i < hash.length; i++) {
-            if (hash[i] != txHash[i])
-                return false;
-        }
-        return true;
+        return index == utxo.index && hash == utxo.hash && Arrays.equals(txHash, utxo.txHash);
     }
 
     /**
@@ -56,12 +82,24 @@ public class UTXO implements Comparable<UTXO> {
      * utxo1.equals(utxo2) => utxo1.hashCode() == utxo2.hashCode())
      */
     public int hashCode() {
-        int hash = 1;
-        hash = hash * 17 + index;
-        hash = hash * 31 + Arrays.hashCode(txHash);
         return hash;
     }
 
+    /**
+     * Transaction hashes are SHA-256 digests, so their first 8 bytes are already uniformly
+     * distributed and hashing the whole array adds nothing. Shorter hashes fall back to
+     * {@link Arrays#hashCode(byte[])}.
+     */
+    private static int computeHash(byte[] txHash, int index) {
+        long h;
+        if (txHash.length >= Long.BYTES)
+            h = (long) LONG_VIEW.get(txHash, 0);
+        else
+            h = Arrays.hashCode(txHash);
+        h ^= index * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
     /** Compares this UTXO to the one specified by {@code utxo} */
     public int compareTo(UTXO utxo) {
         byte[] hash = utxo.txHash;
@@ -1,34 +1,94 @@
+import java.security.PublicKey;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Set;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
 
 public class UTXOPool {
 
     /**
-     * The current collection of UTXOs, with each one mapped to its corresponding transaction output
+     * The current collection of UTXOs, with each one mapped to its corresponding transaction output.
+     * By default it is a persistent map, so copying a pool shares its structure instead of copying
+     * every entry.
      */
-    private HashMap<UTXO, Transaction.Output> H;
+    private UTXOStore H;
+
+    /** The UTXOs grouped by address, or null until {@link #indexAddresses()} is called */
+    private AddressIndex addressIndex;
 
     /** Creates a new empty UTXOPool */
     public UTXOPool() {
-        H = new HashMap<UTXO, Transaction.Output>();
+        H = new PersistentUTXOMap();
+    }
+
+    /** Creates a new UTXOPool whose UTXOs are kept in {@code store} */
+    public UTXOPool(UTXOStore store) {
+        H = store;
     }
 
-    /** Creates a new UTXOPool that is a copy of {@code uPool} */
+    /**
+     * Creates a new UTXOPool that is a copy of {@code uPool}, using the same kind of store. With the
+     * default store this takes constant time; the two pools share their entries until either of
+     * them changes.
+     */
     public UTXOPool(UTXOPool uPool) {
-        H = new HashMap<UTXO, Transaction.Output>(uPool.H);
+        H = uPool.H.copy();
     }
 
     /** Adds a mapping from UTXO {@code utxo} to transaction output @code{txOut} to the pool */
     public void addUTXO(UTXO utxo, Transaction.Output txOut) {
+        if (addressIndex != null) {
+            //utxo may already map to an output of another address.
+            addressIndex.remove(utxo, H.get(utxo));
+            addressIndex.add(utxo, txOut);
+        }
         H.put(utxo, txOut);
     }
 
     /** Removes the UTXO {@code utxo} from the pool */
     public void removeUTXO(UTXO utxo) {
+        if (addressIndex != null)
+            addressIndex.remove(utxo, H.get(utxo));
         H.remove(utxo);
     }
 
+    /**
+     * Removes every UTXO in {@code spent} from the pool and then adds a mapping from each UTXO in
+     * {@code created} to the transaction output at the same position of {@code createdOutputs}.
+     * Depending on the store, this may be cheaper than adding and removing the UTXOs one by one.
+     */
+    public void update(List<UTXO> spent, List<UTXO> created,
+            List<Transaction.Output> createdOutputs) {
+        if (addressIndex != null) {
+            for (UTXO utxo : spent)
+                addressIndex.remove(utxo, H.get(utxo));
+            for (int i = 0; i < created.size(); i++) {
+                addressIndex.remove(created.get(i), H.get(created.get(i)));
+                addressIndex.add(created.get(i), createdOutputs.get(i));
+            }
+        }
+        H.update(spent, created, createdOutputs);
+    }
+
+    /**
+     * Redoes the epoch recorded in {@code record}, which must have been reverted last, in time
+     * proportional to the record.
+     */
+    public void apply(UndoRecord record) {
+        record.applyTo(this);
+    }
+
+    /**
+     * Undoes the epoch recorded in {@code record}, which must be the last epoch applied to this
+     * pool, in time proportional to the record. Several epochs are reverted either one by one from
+     * the newest, or at once with a record chained by {@link UndoRecord#then(UndoRecord)}.
+     */
+    public void revert(UndoRecord record) {
+        record.revertFrom(this);
+    }
+
     /**
      * @return the transaction output corresponding to UTXO {@code utxo}, or null if {@code utxo} is
      *         not in the pool.
@@ -42,13 +102,127 @@ public class UTXOPool {
         return H.containsKey(utxo);
     }
 
+    /**
+     * Ends the current epoch. A pool backed by a persistent store, such as {@link MappedUTXOStore},
+     * makes all changes since the previous commit durable at once.
+     */
+    public void commit() {
+        H.commit();
+    }
+
+    /**
+     * Starts keeping a secondary index of the UTXOs by the address of their output, which makes
+     * {@link #getUTXOs(PublicKey)}, {@link #getBalance(PublicKey)} and
+     * {@link #selectCoins(PublicKey, long)} take time proportional to the UTXOs of the address
+     * rather than to the pool. Building the index scans the pool once; afterwards every change to
+     * the pool also updates it. A copy of the pool made with {@link #UTXOPool(UTXOPool)} isn't
+     * indexed until this is called on it too.
+     */
+    public void indexAddresses() {
+        if (addressIndex != null)
+            return;
+        AddressIndex index = new AddressIndex();
+        forEachToIndex(index::add);
+        addressIndex = index;
+    }
+
+    /** Passes {@link #indexAddresses()} the UTXOs to index, which are all of them */
+    void forEachToIndex(BiConsumer<UTXO, Transaction.Output> action) {
+        H.forEach(action);
+    }
+
+    /** Forgets the address index, so that it is rebuilt by the next {@link #indexAddresses()} */
+    void dropAddressIndex() {
+        addressIndex = null;
+    }
+
+    /**
+     * @return the UTXOs the address index holds for {@code address}, which the pool must be
+     *         indexed for. Callers check them against the pool, so a few may be stale.
+     */
+    ArrayList<UTXO> indexedUTXOs(PublicKey address) {
+        return addressIndex.get(address);
+    }
+
+    /** @return true if {@link #indexAddresses()} was called on this pool */
+    public boolean isAddressIndexed() {
+        return addressIndex != null;
+    }
+
+    /** @return the UTXOs whose output pays {@code address}, oldest first if the pool is indexed */
+    public ArrayList<UTXO> getUTXOs(PublicKey address) {
+        return new ArrayList<UTXO>(outputsPaying(address).keySet());
+    }
+
+    /**
+     * @return the UTXOs whose output pays {@code address} mapped to their outputs. With an index,
+     *         each indexed UTXO is looked up in the pool, and dropped unless it is still there and
+     *         still pays {@code address}, so an index gone stale never yields an output the pool
+     *         doesn't hold.
+     */
+    private LinkedHashMap<UTXO, Transaction.Output> outputsPaying(PublicKey address) {
+        byte[] encoded = address.getEncoded();
+        LinkedHashMap<UTXO, Transaction.Output> outputs =
+            new LinkedHashMap<UTXO, Transaction.Output>();
+        if (addressIndex != null) {
+            for (UTXO ut : indexedUTXOs(address)) {
+                Transaction.Output txOut = H.get(ut);
+                if (pays(txOut, encoded))
+                    outputs.put(ut, txOut);
+            }
+            return outputs;
+        }
+        H.forEach((ut, txOut) -> {
+            if (pays(txOut, encoded))
+                outputs.put(ut, txOut);
+        });
+        return outputs;
+    }
+
+    private static boolean pays(Transaction.Output txOut, byte[] encodedAddress) {
+        return txOut != null && txOut.address != null
+            && Arrays.equals(txOut.getEncodedAddress(), encodedAddress);
+    }
+
+    /**
+     * @return the sum of the values of the UTXOs paying {@code address}
+     * @throws ArithmeticException if the sum overflows a long
+     */
+    public long getBalance(PublicKey address) {
+        long balance = 0;
+        for (Transaction.Output txOut : outputsPaying(address).values())
+            balance = Math.addExact(balance, txOut.value);
+        return balance;
+    }
+
+    /**
+     * @return UTXOs paying {@code address} whose values add up to at least {@code amount}, taken
+     *         from the oldest, or null if its balance is smaller than {@code amount}
+     */
+    public ArrayList<UTXO> selectCoins(PublicKey address, long amount) {
+        ArrayList<UTXO> selected = new ArrayList<UTXO>();
+        long sum = 0;
+        for (Map.Entry<UTXO, Transaction.Output> utxo : outputsPaying(address).entrySet()) {
+            if (sum >= amount)
+                return selected;
+            selected.add(utxo.getKey());
+            //values are non-negative, so the sum can only overflow past any amount.
+            sum += utxo.getValue().value;
+            if (sum < 0)
+                return selected;
+        }
+        return sum >= amount ? selected : null;
+    }
+
+    /** @return the store this pool keeps its UTXOs in */
+    UTXOStore store() {
+        return H;
+    }
+
     /** Returns an {@code ArrayList} of all UTXOs in the pool */
     public ArrayList<UTXO> getAllUTXO() {
-        Set<UTXO> setUTXO = H.keySet();
-        ArrayList<UTXO> allUTXO = new ArrayList<UTXO>();
-        for (UTXO ut : setUTXO) {
-            allUTXO.add(ut);
-        }
+        ArrayList<UTXO> allUTXO = new ArrayList<UTXO>(H.size());
+        H.forEach((ut, txOut) -> allUTXO.add(ut));
         return allUTXO;
     }
 }
@@ -0,0 +1,51 @@
+import java.util.List;
+import java.util.function.BiConsumer;
+
+/**
+ * The storage engine behind a {@link UTXOPool}, mapping each UTXO to its transaction output. A pool
+ * created with {@link UTXOPool#UTXOPool()} uses a {@link PersistentUTXOMap}; other engines can be
+ * chosen with {@link UTXOPool#UTXOPool(UTXOStore)}.
+ */
+public interface UTXOStore {
+
+    /** @return the output mapped to {@code utxo}, or null if there is none */
+    Transaction.Output get(UTXO utxo);
+
+    /** @return true if {@code utxo} is mapped to an output, even a null one */
+    boolean containsKey(UTXO utxo);
+
+    /** Maps {@code utxo} to {@code txOut}, replacing any previous mapping */
+    void put(UTXO utxo, Transaction.Output txOut);
+
+    /** Removes the mapping for {@code utxo}, if any */
+    void remove(UTXO utxo);
+
+    /**
+     * Removes every UTXO in {@code spent} and then maps each UTXO in {@code created} to the output at
+     * the same position of {@code createdOutputs}. Stores that synchronize their writes can apply the
+     * whole update at once instead of one UTXO at a time.
+     */
+    default void update(List<UTXO> spent, List<UTXO> created,
+            List<Transaction.Output> createdOutputs) {
+        for (UTXO utxo : spent)
+            remove(utxo);
+        for (int i = 0; i < created.size(); i++)
+            put(created.get(i), createdOutputs.get(i));
+    }
+
+    /** @return the number of UTXOs in the store */
+    int size();
+
+    /** Calls {@code action} on every entry of the store, in no particular order */
+    void forEach(BiConsumer<UTXO, Transaction.Output> action);
+
+    /** @return a store with the same entries as this one that does not see later updates to it */
+    UTXOStore copy();
+
+    /**
+     * Marks the end of an epoch. Stores that persist their entries make every update since the
+     * previous commit durable at once; for in-memory stores this does nothing.
+     */
+    default void commit() {
+    }
+}
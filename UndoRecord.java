@@ -0,0 +1,113 @@
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * What an epoch did to a {@link UTXOPool}: the UTXOs it spent, with their outputs, and the UTXOs it
+ * created. Outputs created and spent within the same epoch appear in neither, so a record is as
+ * large as the net change of its epoch. {@link UTXOPool#revert(UndoRecord)} undoes the epoch and
+ * {@link UTXOPool#apply(UndoRecord)} redoes it, both in time proportional to the record.
+ *
+ * <p>The records of consecutive epochs can be chained with {@link #then(UndoRecord)} into one that
+ * reverts them all at once. Records are immutable.
+ */
+public final class UndoRecord {
+
+    /** The record of an epoch that changed nothing */
+    public static final UndoRecord EMPTY = new Journal().toRecord();
+
+    private final UTXO[] spent;
+    private final Transaction.Output[] spentOutputs;
+    private final UTXO[] created;
+    private final Transaction.Output[] createdOutputs;
+
+    private UndoRecord(Map<UTXO, Transaction.Output> spent, Map<UTXO, Transaction.Output> created) {
+        this.spent = spent.keySet().toArray(new UTXO[0]);
+        this.spentOutputs = spent.values().toArray(new Transaction.Output[0]);
+        this.created = created.keySet().toArray(new UTXO[0]);
+        this.createdOutputs = created.values().toArray(new Transaction.Output[0]);
+    }
+
+    /** @return the number of UTXOs the epoch removed from the pool */
+    public int spentCount() {
+        return spent.length;
+    }
+
+    /** @return the number of UTXOs the epoch added to the pool */
+    public int createdCount() {
+        return created.length;
+    }
+
+    /** @return the UTXOs the epoch removed from the pool */
+    public List<UTXO> getSpent() {
+        return Arrays.asList(spent.clone());
+    }
+
+    /** @return the outputs of the UTXOs the epoch removed, in the order of {@link #getSpent()} */
+    public List<Transaction.Output> getSpentOutputs() {
+        return Arrays.asList(spentOutputs.clone());
+    }
+
+    /** @return the UTXOs the epoch added to the pool */
+    public List<UTXO> getCreated() {
+        return Arrays.asList(created.clone());
+    }
+
+    /**
+     * @return a record of this epoch followed by {@code next}. Reverting it has the effect of
+     *         reverting {@code next} and then this one.
+     */
+    public UndoRecord then(UndoRecord next) {
+        Journal journal = new Journal();
+        journal.add(this);
+        journal.add(next);
+        return journal.toRecord();
+    }
+
+    void applyTo(UTXOPool pool) {
+        pool.update(Arrays.asList(spent), Arrays.asList(created), Arrays.asList(createdOutputs));
+    }
+
+    void revertFrom(UTXOPool pool) {
+        //the two sides share no UTXO, so removing the created ones first and adding back the spent
+        //ones is the exact inverse.
+        pool.update(Arrays.asList(created), Arrays.asList(spent), Arrays.asList(spentOutputs));
+    }
+
+    /**
+     * Collects the changes of an epoch as they are made, and cancels an output's creation against
+     * its spending when both happen in the same epoch.
+     */
+    static final class Journal {
+        private final LinkedHashMap<UTXO, Transaction.Output> spent =
+            new LinkedHashMap<UTXO, Transaction.Output>();
+        private final LinkedHashMap<UTXO, Transaction.Output> created =
+            new LinkedHashMap<UTXO, Transaction.Output>();
+
+        /** Records that {@code utxo}, which maps to {@code output}, was removed from the pool */
+        void spent(UTXO utxo, Transaction.Output output) {
+            if (created.containsKey(utxo))
+                created.remove(utxo);
+            else
+                spent.put(utxo, output);
+        }
+
+        /** Records that {@code utxo} was added to the pool, mapping to {@code output} */
+        void created(UTXO utxo, Transaction.Output output) {
+            created.put(utxo, output);
+        }
+
+        /** Records the changes of {@code record}, as if its epoch came after the recorded ones */
+        void add(UndoRecord record) {
+            for (int i = 0; i < record.spent.length; i++)
+                spent(record.spent[i], record.spentOutputs[i]);
+            for (int i = 0; i < record.created.length; i++)
+                created(record.created[i], record.createdOutputs[i]);
+        }
+
+        UndoRecord toRecord() {
+            return new UndoRecord(spent, created);
+        }
+    }
+}
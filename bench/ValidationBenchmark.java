@@ -0,0 +1,632 @@
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.Supplier;
+
+/**
+ * Benchmarks of the validation hot path: signature verification, transaction serialization and
+ * hashing, UTXO hashing and equality, UTXOPool lookups and updates for every store, and TxHandler on
+ * synthetic epochs of varying chain depth, fan-in, fan-out and double-spend ratio.
+ *
+ * <p>Compile it together with the sources and run it from the repository root:
+ *
+ * <pre>
+ *   javac -d out *.java bench/*.java
+ *   java -Xmx16g -cp out ValidationBenchmark --pool-sizes 1000000,10000000 --json results.json
+ * </pre>
+ *
+ * Every benchmark is warmed up and then measured over several fixed-time iterations, reporting the
+ * mean throughput and its 99.9% confidence interval. With {@code --json} the results are written in
+ * the same shape as JMH's JSON output, so they can be tracked with the usual tooling. Use
+ * {@code --only <prefix>} to run a subset, e.g. {@code --only pool.}.
+ *
+ * <p>Like JMH's forks, each group of benchmarks runs in a JVM of its own, started with the same JVM
+ * options: the crypto, transaction, utxo and txhandler benchmarks, and the pool benchmarks of each
+ * store and size. Otherwise the JIT would profile the calls into UTXOStore, and the measured ops,
+ * across every group run so far, and a group's results would depend on the ones run before it.
+ * {@code --forks n} runs each group in n JVMs one after the other, reporting each JVM's iterations
+ * separately in the JSON; {@code --forks 0} runs everything in this JVM. Measured values are handed
+ * to a {@link Blackhole} as in JMH, so the JIT can't drop the code computing them.
+ *
+ * <p>The benchmarks that verify signatures run once with the {@link SignatureCache} disabled, which
+ * measures the verification itself, and once with a fresh cache, which after the first iteration
+ * measures re-checking signatures that were already seen. The {@code signatureCache} parameter
+ * tells the two apart.
+ */
+public class ValidationBenchmark {
+
+    /** Capacity of the signature cache of the runs that use one, the same as Crypto's default */
+    private static final int SIGNATURE_CACHE_SIZE = 1 << 16;
+
+    private int warmupIterations = 3;
+    private int iterations = 5;
+    private long iterationMillis = 1000;
+    private int[] poolSizes = { 1_000_000 };
+    private String only = "";
+    private int forks = 1;
+    /** The only group to run, in this JVM, or null to run them all */
+    private String group;
+    /** Where a forked JVM writes its results for the one that started it */
+    private String rawPath;
+    private String jsonPath;
+    private final ArrayList<Result> results = new ArrayList<Result>();
+
+    public static void main(String[] args) throws Exception {
+        ValidationBenchmark b = new ValidationBenchmark();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--warmup": b.warmupIterations = Integer.parseInt(args[++i]); break;
+                case "--iterations": b.iterations = Integer.parseInt(args[++i]); break;
+                case "--iteration-millis": b.iterationMillis = Long.parseLong(args[++i]); break;
+                case "--pool-sizes": b.poolSizes = parseInts(args[++i]); break;
+                case "--only": b.only = args[++i]; break;
+                case "--forks": b.forks = Integer.parseInt(args[++i]); break;
+                case "--group": b.group = args[++i]; break;
+                case "--raw": b.rawPath = args[++i]; break;
+                case "--json": b.jsonPath = args[++i]; break;
+                default:
+                    System.err.println("usage: ValidationBenchmark [--warmup n] [--iterations n] "
+                        + "[--iteration-millis ms] [--pool-sizes n,n,...] [--only prefix] "
+                        + "[--forks n] [--group name] [--json file]");
+                    System.exit(2);
+            }
+        }
+        if (b.group != null) {
+            b.runGroup(b.group, new Fixture(new Random(1), 16));
+        } else if (b.forks > 0) {
+            b.runForked();
+        } else {
+            Fixture f = new Fixture(new Random(1), 16);
+            for (String group : b.groups())
+                b.runGroup(group, f);
+        }
+        if (b.rawPath != null)
+            b.writeRaw(b.rawPath);
+        if (b.jsonPath != null)
+            b.writeJson(b.jsonPath);
+    }
+
+    /** @return the groups of benchmarks {@code --only} selects, each of which gets its own JVM */
+    private List<String> groups() {
+        ArrayList<String> groups = new ArrayList<String>();
+        groups.add("crypto");
+        groups.add("transaction");
+        groups.add("utxo");
+        for (int size : poolSizes) {
+            for (String store : new String[] { "persistent", "offheap", "concurrent" })
+                groups.add("pool." + store + "." + size);
+        }
+        groups.add("txhandler");
+        groups.removeIf(g -> !selected(g.split("\\.")[0] + "."));
+        return groups;
+    }
+
+    private void runGroup(String group, Fixture f) throws Exception {
+        String[] parts = group.split("\\.");
+        switch (parts[0]) {
+            case "crypto": cryptoBenchmarks(f); break;
+            case "transaction": transactionBenchmarks(f); break;
+            case "utxo": utxoBenchmarks(); break;
+            case "pool": {
+                int size = Integer.parseInt(parts[2]);
+                Supplier<UTXOStore> stores;
+                switch (parts[1]) {
+                    case "persistent": stores = PersistentUTXOMap::new; break;
+                    case "offheap": stores = () -> new OffHeapUTXOStore(size); break;
+                    case "concurrent": stores = ConcurrentUTXOStore::new; break;
+                    default: throw new IllegalArgumentException("unknown store: " + parts[1]);
+                }
+                poolBenchmarks(parts[1], size, stores, f);
+                break;
+            }
+            case "txhandler": handlerBenchmarks(f); break;
+            default: throw new IllegalArgumentException("unknown group: " + group);
+        }
+    }
+
+    /**
+     * Runs every group in {@code forks} new JVMs each, with the JVM options and class path of this
+     * one, and gathers their results
+     */
+    private void runForked() throws Exception {
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        Map<String, Result> merged = new LinkedHashMap<String, Result>();
+        for (String g : groups()) {
+            for (int fork = 1; fork <= forks; fork++) {
+                Path raw = Files.createTempFile("benchmark", ".tsv");
+                try {
+                    ArrayList<String> command = new ArrayList<String>();
+                    command.add(java);
+                    command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+                    command.addAll(Arrays.asList("-cp", System.getProperty("java.class.path"),
+                        ValidationBenchmark.class.getName(),
+                        "--warmup", String.valueOf(warmupIterations),
+                        "--iterations", String.valueOf(iterations),
+                        "--iteration-millis", String.valueOf(iterationMillis),
+                        "--only", only, "--group", g, "--raw", raw.toString()));
+                    System.out.printf("# fork %d of %d: %s%n", fork, forks, g);
+                    int status = new ProcessBuilder(command).inheritIO().start().waitFor();
+                    if (status != 0)
+                        throw new IOException("fork running " + g + " exited with " + status);
+                    for (String line : Files.readAllLines(raw, StandardCharsets.UTF_8)) {
+                        Result r = Result.parse(line);
+                        merged.merge(r.benchmark + r.params, r, Result::plus);
+                    }
+                } finally {
+                    Files.deleteIfExists(raw);
+                }
+            }
+        }
+        results.addAll(merged.values());
+        if (forks > 1) {
+            System.out.printf("# over %d forks%n", forks);
+            for (Result r : results)
+                print(r);
+        }
+    }
+
+    private void cryptoBenchmarks(Fixture f) throws Exception {
+        Transaction tx = f.payment(1, 2);
+        byte[] message = tx.getRawDataToSign(0);
+        byte[] signature = tx.getInput(0).signature;
+        for (boolean cached : new boolean[] { false, true }) {
+            useSignatureCache(cached);
+            run("crypto.verifySignature", params("signatureCache", cached), (i, bh) ->
+                bh.consume(Crypto.verifySignature(f.keys[0].getPublic(), message, signature)));
+        }
+    }
+
+    private void transactionBenchmarks(Fixture f) throws Exception {
+        for (int inputs : new int[] { 1, 16, 256 }) {
+            Transaction tx = f.payment(inputs, 4);
+            Map<String, Object> p = params("inputs", inputs, "outputs", 4);
+            run("transaction.getRawDataToSign", p, (i, bh) ->
+                bh.consume(tx.getRawDataToSign(i % inputs)));
+            run("transaction.getRawTx", p, (i, bh) -> bh.consume(tx.getRawTx()));
+            //re-adding a signature marks the tx as changed, so every call hashes it again.
+            byte[] signature = tx.getInput(0).signature;
+            run("transaction.finalize", p, (i, bh) -> {
+                tx.addSignature(signature, 0);
+                tx.finalize();
+                bh.consume(tx.getId());
+            });
+            run("transaction.finalize.unchanged", p, (i, bh) -> {
+                tx.finalize();
+                bh.consume(tx.getId());
+            });
+        }
+    }
+
+    private void utxoBenchmarks() {
+        Random random = new Random(2);
+        UTXO[] utxos = new UTXO[1024];
+        UTXO[] equal = new UTXO[utxos.length];
+        for (int i = 0; i < utxos.length; i++) {
+            byte[] hash = randomHash(random);
+            utxos[i] = new UTXO(hash, i & 3);
+            equal[i] = new UTXO(hash, i & 3);
+        }
+        run("utxo.hashCode", params(), (i, bh) -> bh.consume(utxos[i & 1023].hashCode()));
+        run("utxo.equals", params(), (i, bh) ->
+            bh.consume(utxos[i & 1023].equals(equal[i & 1023])));
+    }
+
+    private void poolBenchmarks(String store, int size, Supplier<UTXOStore> stores, Fixture f) {
+        if (!selected("pool."))
+            return;
+        Random random = new Random(3);
+        UTXO[] present = new UTXO[size];
+        UTXOPool pool = new UTXOPool(stores.get());
+        Transaction.Output[] outputs = new Transaction.Output[f.keys.length];
+        for (int i = 0; i < outputs.length; i++)
+            outputs[i] = new Transaction.Output(1, f.keys[i].getPublic());
+        for (int i = 0; i < size; i++) {
+            present[i] = new UTXO(randomHash(random), i & 3);
+            pool.addUTXO(present[i], outputs[i % outputs.length]);
+        }
+        UTXO[] absent = new UTXO[Math.min(size, 1 << 20)];
+        for (int i = 0; i < absent.length; i++)
+            absent[i] = new UTXO(randomHash(random), 0);
+        Map<String, Object> p = params("store", store, "entries", size);
+
+        run("pool.getTxOutput", p, (i, bh) -> bh.consume(pool.getTxOutput(present[i % size])));
+        run("pool.contains.hit", p, (i, bh) -> bh.consume(pool.contains(present[i % size])));
+        run("pool.contains.miss", p, (i, bh) ->
+            bh.consume(pool.contains(absent[i % absent.length])));
+        //each op removes one UTXO and adds it back, so the pool keeps its size.
+        run("pool.removeAndAdd", p, (i, bh) -> {
+            UTXO utxo = present[i % size];
+            pool.removeUTXO(utxo);
+            pool.addUTXO(utxo, outputs[i % outputs.length]);
+        });
+    }
+
+    private void handlerBenchmarks(Fixture f) throws Exception {
+        if (!selected("txhandler."))
+            return;
+        int[][] shapes = {
+            // chain depth, fan-in, fan-out, double spends per 100 txs
+            { 1, 1, 2, 0 },
+            { 1, 4, 4, 0 },
+            { 8, 1, 2, 0 },
+            { 32, 2, 2, 0 },
+            { 8, 2, 2, 10 },
+            { 1, 1, 2, 50 },
+        };
+        for (int[] shape : shapes) {
+            Epoch epoch = f.epoch(1024, shape[0], shape[1], shape[2], shape[3] / 100.0);
+            for (boolean cached : new boolean[] { false, true }) {
+                useSignatureCache(cached);
+                Map<String, Object> p = params("txs", epoch.txs.length, "chainDepth", shape[0],
+                    "fanIn", shape[1], "fanOut", shape[2], "doubleSpendRatio", shape[3] / 100.0,
+                    "signatureCache", cached);
+                TxHandler handler = new TxHandler(epoch.pool);
+                Transaction[] roots = epoch.roots.toArray(new Transaction[0]);
+                run("txhandler.isValidTx", p, (i, bh) ->
+                    bh.consume(handler.isValidTx(roots[i % roots.length])));
+                int cores = Runtime.getRuntime().availableProcessors();
+                for (int parallelism : cores > 1 ? new int[] { 1, cores } : new int[] { 1 }) {
+                    Map<String, Object> pp = new LinkedHashMap<String, Object>(p);
+                    pp.put("parallelism", parallelism);
+                    run("txhandler.handleTxs", pp, epoch.txs.length, (i, bh) -> bh.consume(
+                        new TxHandler(epoch.pool, parallelism).handleTxs(epoch.txs)));
+                }
+            }
+        }
+    }
+
+    /**
+     * Disables the signature cache, or replaces it with an empty one so that no earlier run's
+     * checks are in it
+     */
+    private static void useSignatureCache(boolean cached) {
+        Crypto.setSignatureCache(cached ? new SignatureCache(SIGNATURE_CACHE_SIZE) : null);
+    }
+
+    /**
+     * The measured code; {@code i} counts the invocations so it can pick different inputs, and
+     * whatever it computes goes to {@code bh}
+     */
+    private interface Op {
+        void run(int i, Blackhole bh) throws Exception;
+    }
+
+    /**
+     * Consumes values the way JMH's Blackhole does: in a way the JIT can't see through, so the code
+     * computing them can't be dropped as dead, and cheaply enough not to show in the results
+     */
+    static final class Blackhole {
+        //never equal, but the JIT can't know it.
+        private volatile int int1 = 1;
+        private volatile int int2 = 2;
+        private volatile boolean bool1 = false;
+        private volatile boolean bool2 = true;
+        //objects are published at exponentially growing intervals of a pseudo-random sequence.
+        private volatile Object published;
+        private int random = (int) System.nanoTime();
+        private int mask = 1;
+
+        void consume(int value) {
+            if ((value ^ int1) == (value ^ int2))
+                throw new IllegalStateException("unreachable");
+        }
+
+        void consume(boolean value) {
+            if ((value ^ bool1) & (value ^ bool2))
+                throw new IllegalStateException("unreachable");
+        }
+
+        void consume(Object value) {
+            random = random * 1664525 + 1013904223;
+            if ((random & mask) == 0) {
+                published = value;
+                mask = (mask << 1) + 1;
+            }
+        }
+    }
+
+    private void run(String name, Map<String, Object> params, Op op) {
+        run(name, params, 1, op);
+    }
+
+    /** Runs {@code op} repeatedly, counting {@code opsPerCall} operations per call */
+    private void run(String name, Map<String, Object> params, int opsPerCall, Op op) {
+        if (!selected(name))
+            return;
+        try {
+            int i = 0;
+            for (int w = 0; w < warmupIterations; w++)
+                i = iteration(op, i, null);
+            double[] scores = new double[iterations];
+            long[] calls = new long[1];
+            for (int m = 0; m < iterations; m++) {
+                long start = System.nanoTime();
+                i = iteration(op, i, calls);
+                scores[m] = calls[0] * (double) opsPerCall / ((System.nanoTime() - start) / 1e9);
+            }
+            Result r = new Result(name, params, new double[][] { scores });
+            results.add(r);
+            print(r);
+        } catch (Exception e) {
+            throw new RuntimeException(name + " failed", e);
+        }
+    }
+
+    private static void print(Result r) {
+        System.out.printf("%-32s %-70s %14.1f +- %.1f ops/s%n", r.benchmark, r.params, r.score,
+            r.error);
+    }
+
+    private int iteration(Op op, int i, long[] calls) throws Exception {
+        Blackhole bh = new Blackhole();
+        long end = System.nanoTime() + iterationMillis * 1_000_000;
+        long n = 0;
+        do {
+            //check the clock every 16 calls so that cheap ops aren't dominated by nanoTime.
+            for (int k = 0; k < 16; k++, n++)
+                op.run(i++ & Integer.MAX_VALUE, bh);
+        } while (System.nanoTime() < end);
+        if (calls != null)
+            calls[0] = n;
+        return i;
+    }
+
+    private boolean selected(String name) {
+        return name.startsWith(only) || only.startsWith(name);
+    }
+
+    private static final class Result {
+        final String benchmark;
+        final Map<String, Object> params;
+        /** The scores of each iteration, grouped by the fork that measured them */
+        final double[][] raw;
+        final double score;
+        final double error;
+
+        Result(String benchmark, Map<String, Object> params, double[][] raw) {
+            this.benchmark = benchmark;
+            this.params = params;
+            this.raw = raw;
+            double[] all = Arrays.stream(raw).flatMapToDouble(Arrays::stream).toArray();
+            double sum = 0;
+            for (double r : all)
+                sum += r;
+            score = sum / all.length;
+            double variance = 0;
+            for (double r : all)
+                variance += (r - score) * (r - score);
+            variance = all.length > 1 ? variance / (all.length - 1) : 0;
+            //normal approximation of the 99.9% confidence interval JMH reports as the error.
+            error = 3.29 * Math.sqrt(variance / all.length);
+        }
+
+        /** @return this result with the forks of {@code other}, the same benchmark, added */
+        Result plus(Result other) {
+            double[][] forks = Arrays.copyOf(raw, raw.length + other.raw.length);
+            System.arraycopy(other.raw, 0, forks, raw.length, other.raw.length);
+            return new Result(benchmark, params, forks);
+        }
+
+        /** @return the line a fork writes for this result, its name, params and scores */
+        String format() {
+            StringBuilder line = new StringBuilder(benchmark).append('\t');
+            int n = 0;
+            for (Map.Entry<String, Object> e : params.entrySet()) {
+                line.append(n++ == 0 ? "" : ",");
+                line.append(e.getKey()).append('=').append(e.getValue());
+            }
+            line.append('\t');
+            for (int k = 0; k < raw[0].length; k++)
+                line.append(k == 0 ? "" : ",").append(raw[0][k]);
+            return line.toString();
+        }
+
+        /** @return the result of a line written by {@link #format()} */
+        static Result parse(String line) {
+            String[] fields = line.split("\t", -1);
+            Map<String, Object> params = new LinkedHashMap<String, Object>();
+            if (!fields[1].isEmpty()) {
+                for (String param : fields[1].split(",")) {
+                    int eq = param.indexOf('=');
+                    params.put(param.substring(0, eq), param.substring(eq + 1));
+                }
+            }
+            double[] scores = Arrays.stream(fields[2].split(",")).mapToDouble(Double::parseDouble)
+                .toArray();
+            return new Result(fields[0], params, new double[][] { scores });
+        }
+    }
+
+    private void writeRaw(String path) throws IOException {
+        try (Writer w = Files.newBufferedWriter(Paths.get(path), StandardCharsets.UTF_8)) {
+            for (Result r : results)
+                w.write(r.format() + "\n");
+        }
+    }
+
+    private void writeJson(String path) throws IOException {
+        try (Writer w = Files.newBufferedWriter(Paths.get(path), StandardCharsets.UTF_8)) {
+            w.write("[\n");
+            for (int i = 0; i < results.size(); i++) {
+                Result r = results.get(i);
+                w.write("  {\n");
+                w.write("    \"benchmark\": " + quote(r.benchmark) + ",\n");
+                w.write("    \"mode\": \"thrpt\",\n");
+                w.write("    \"forks\": " + r.raw.length + ",\n");
+                w.write("    \"warmupIterations\": " + warmupIterations + ",\n");
+                w.write("    \"measurementIterations\": " + iterations + ",\n");
+                w.write("    \"measurementTime\": \"" + iterationMillis + " ms\",\n");
+                w.write("    \"params\": {");
+                int n = 0;
+                for (Map.Entry<String, Object> e : r.params.entrySet())
+                    w.write((n++ == 0 ? " " : ", ") + quote(e.getKey()) + ": "
+                        + quote(String.valueOf(e.getValue())));
+                w.write(" },\n");
+                w.write("    \"primaryMetric\": {\n");
+                w.write("      \"score\": " + r.score + ",\n");
+                w.write("      \"scoreError\": " + r.error + ",\n");
+                w.write("      \"scoreUnit\": \"ops/s\",\n");
+                w.write("      \"rawData\": [");
+                for (int fork = 0; fork < r.raw.length; fork++) {
+                    w.write(fork == 0 ? "[" : ", [");
+                    for (int k = 0; k < r.raw[fork].length; k++)
+                        w.write((k == 0 ? "" : ", ") + r.raw[fork][k]);
+                    w.write("]");
+                }
+                w.write("]\n    }\n  }" + (i + 1 < results.size() ? "," : "") + "\n");
+            }
+            w.write("]\n");
+        }
+    }
+
+    private static String quote(String s) {
+        return "\"" + s.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+
+    private static Map<String, Object> params(Object... keysAndValues) {
+        Map<String, Object> p = new LinkedHashMap<String, Object>();
+        for (int i = 0; i < keysAndValues.length; i += 2)
+            p.put((String) keysAndValues[i], keysAndValues[i + 1]);
+        return p;
+    }
+
+    private static int[] parseInts(String s) {
+        String[] parts = s.split(",");
+        int[] values = new int[parts.length];
+        for (int i = 0; i < parts.length; i++)
+            values[i] = Integer.parseInt(parts[i].trim());
+        return values;
+    }
+
+    private static byte[] randomHash(Random random) {
+        byte[] hash = new byte[32];
+        random.nextBytes(hash);
+        return hash;
+    }
+
+    /** A synthetic epoch: the pool it starts from and its transactions in random order */
+    private static final class Epoch {
+        final UTXOPool pool = new UTXOPool();
+        final ArrayList<Transaction> roots = new ArrayList<Transaction>();
+        Transaction[] txs;
+    }
+
+    /** Keys and helpers to build signed transactions */
+    private static final class Fixture {
+        final Random random;
+        final KeyPair[] keys;
+
+        Fixture(Random random, int keyCount) throws NoSuchAlgorithmException {
+            this.random = random;
+            KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+            generator.initialize(2048);
+            keys = new KeyPair[keyCount];
+            for (int i = 0; i < keyCount; i++)
+                keys[i] = generator.generateKeyPair();
+        }
+
+        /** @return a signed transaction spending {@code inputs} made-up outputs of key 0 */
+        Transaction payment(int inputs, int outputs) throws GeneralSecurityException {
+            Transaction tx = new Transaction();
+            for (int i = 0; i < inputs; i++)
+                tx.addInput(randomHash(random), i);
+            for (int i = 0; i < outputs; i++)
+                tx.addOutput(1, keys[i % keys.length].getPublic());
+            int[] owners = new int[inputs];
+            sign(tx, owners);
+            tx.finalize();
+            return tx;
+        }
+
+        /**
+         * @return an epoch of about {@code txCount} transactions in chains of {@code depth}, where
+         *         each transaction spends its parent's first output plus fresh pool outputs up to
+         *         {@code fanIn} inputs, and creates {@code fanOut} outputs. A
+         *         {@code doubleSpendRatio} fraction of them get a conflicting twin.
+         */
+        Epoch epoch(int txCount, int depth, int fanIn, int fanOut, double doubleSpendRatio)
+                throws GeneralSecurityException {
+            Epoch epoch = new Epoch();
+            ArrayList<Transaction> txs = new ArrayList<Transaction>();
+            for (int chain = 0; chain < txCount / depth; chain++) {
+                Transaction parent = null;
+                int parentOwner = 0;
+                for (int level = 0; level < depth; level++) {
+                    Transaction tx = new Transaction();
+                    ArrayList<Integer> owners = new ArrayList<Integer>();
+                    long value = 0;
+                    if (parent != null) {
+                        tx.addInput(parent.getHash(), 0);
+                        owners.add(parentOwner);
+                        value += parent.getOutput(0).value;
+                    }
+                    while (tx.numInputs() < fanIn) {
+                        int owner = random.nextInt(keys.length);
+                        byte[] hash = randomHash(random);
+                        epoch.pool.addUTXO(new UTXO(hash, 0),
+                            new Transaction.Output(100 * Transaction.UNITS_PER_COIN,
+                                keys[owner].getPublic()));
+                        tx.addInput(hash, 0);
+                        owners.add(owner);
+                        value += 100 * Transaction.UNITS_PER_COIN;
+                    }
+                    int owner = random.nextInt(keys.length);
+                    for (int o = 0; o < fanOut; o++)
+                        tx.addOutput((value - 1) / fanOut, keys[o == 0 ? owner : random.nextInt(
+                            keys.length)].getPublic());
+                    sign(tx, owners.stream().mapToInt(Integer::intValue).toArray());
+                    tx.finalize();
+                    txs.add(tx);
+                    if (parent == null)
+                        epoch.roots.add(tx);
+                    if (random.nextDouble() < doubleSpendRatio)
+                        txs.add(conflictingTwin(tx, owners.get(0)));
+                    parent = tx;
+                    parentOwner = owner;
+                }
+            }
+            Collections.shuffle(txs, random);
+            epoch.txs = txs.toArray(new Transaction[0]);
+            return epoch;
+        }
+
+        /** @return a transaction spending the first input of {@code tx} to a different key */
+        private Transaction conflictingTwin(Transaction tx, int owner)
+                throws GeneralSecurityException {
+            Transaction twin = new Transaction();
+            Transaction.Input in = tx.getInput(0);
+            twin.addInput(in.prevTxHash, in.outputIndex);
+            twin.addOutput(1, keys[random.nextInt(keys.length)].getPublic());
+            sign(twin, new int[] { owner });
+            twin.finalize();
+            return twin;
+        }
+
+        private void sign(Transaction tx, int[] owners) throws GeneralSecurityException {
+            for (int i = 0; i < tx.numInputs(); i++) {
+                PrivateKey key = keys[owners[i]].getPrivate();
+                Signature signature = Signature.getInstance("SHA256withRSA");
+                signature.initSign(key);
+                signature.update(tx.getRawDataToSign(i));
+                tx.addSignature(signature.sign(), i);
+            }
+        }
+    }
+}